@@ -0,0 +1,197 @@
+import data.Image;
+import data.Precision;
+import network.CompiledNetwork;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static data.MatrixUtility.getMaxIndex;
+
+/**
+ * Reads many JMBAG pictures at once, every picture on its own virtual thread.
+ * At most maxConcurrent pictures are read at the same time. When all of them are busy,
+ * the next picture is not even opened until one of them is done, so a huge directory
+ * does not fill the memory with decoded pictures waiting for their turn.
+ * The network is loaded once for the whole batch and shared by all the threads, and every
+ * thread that is reading borrows a NumbersReader.Workspace, so the preprocessing buffers are
+ * reused instead of allocated for every picture.
+ * Results are passed on as soon as every picture is done, so they come in the order the
+ * pictures were finished, not the order they were given in.
+ */
+public class BatchReader {
+
+    /**
+     * Result of reading one picture.
+     * @param id path of the picture
+     * @param digits guessed digits from left to right, without spaces
+     * @param confidences probability the network gave to every guessed digit, between 0 and 1
+     * @param error why the picture could not be read, null if it was read
+     */
+    public record Result(String id, String digits, double[] confidences, Exception error) {}
+
+    private final NumbersReader _reader;
+    private final String _nnPath;
+    private final BlockingQueue<NumbersReader.Workspace> _workspaces;
+
+    /**
+     * @param reader reader whose networks are used
+     * @param nnPath network file, or a directory with networks (see NumbersReader)
+     * @param maxConcurrent maximum number of pictures read at the same time
+     */
+    public BatchReader(NumbersReader reader, String nnPath, int maxConcurrent) {
+        if(maxConcurrent < 1){
+            throw new IllegalArgumentException("At least 1 picture must be read at once, was " + maxConcurrent);
+        }
+        this._reader = reader;
+        this._nnPath = nnPath;
+
+        _workspaces = new ArrayBlockingQueue<>(maxConcurrent);
+        for(int i=0; i<maxConcurrent; i++){
+            _workspaces.add(new NumbersReader.Workspace(reader.isProxySearch()));
+        }
+    }
+
+    /**
+     * Reads every picture (.png, .jpg, .jpeg) in the directory. The directory is listed
+     * while the pictures are read, not before.
+     * @param directory directory with the pictures
+     * @param results called once for every picture, from one thread at a time
+     */
+    public void readDirectory(Path directory, Consumer<Result> results) throws IOException, InterruptedException {
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, BatchReader::isImage)){
+            readAll(files, results);
+        }
+    }
+
+    /**
+     * Reads all the given pictures and returns when all of them are done.
+     * A picture that cannot be read gives a Result with the error, the other pictures are still read.
+     * @param images pictures to read
+     * @param results called once for every picture, from one thread at a time
+     */
+    public void readAll(Iterable<Path> images, Consumer<Result> results) throws InterruptedException {
+        CompiledNetwork network = _reader.loadNN(_nnPath);     //same network for the whole batch, even if a newer one appears
+        /*Not synchronized: a virtual thread waiting for a monitor or doing I/O in it (printing the results)
+        * keeps its carrier thread busy, a virtual thread waiting for this lock does not.*/
+        ReentrantLock resultsLock = new ReentrantLock();
+
+        try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()){
+            for(Path image: images){
+                NumbersReader.Workspace workspace = _workspaces.take();    //waits here while all the workspaces are busy
+
+                executor.execute(() -> {
+                    Result result;
+                    try {
+                        result = read(image, network, workspace);
+                    } catch (Exception e) {
+                        result = new Result(image.toString(), "", new double[0], e);
+                    } finally {
+                        _workspaces.add(workspace);
+                    }
+
+                    resultsLock.lock();
+                    try {
+                        results.accept(result);
+                    } finally {
+                        resultsLock.unlock();
+                    }
+                });
+            }
+        }   //close waits for all the pictures
+    }
+
+    private Result read(Path image, CompiledNetwork network, NumbersReader.Workspace workspace) throws IOException {
+        BufferedImage picture = ImageIO.read(image.toFile());
+        if(picture == null){
+            throw new IOException("Not a supported image: " + image);
+        }
+
+        List<Image> digits = _reader.extractDigits(picture, image.getFileName().toString(), workspace);
+
+        double[][] outputs = network.getProbabilities(digits);     //all the digits of the picture in one pass
+
+        StringBuilder guessed = new StringBuilder();
+        double[] confidences = new double[digits.size()];
+        for(int i=0; i<digits.size(); i++){
+            double[] output = outputs[i];
+            int guess = getMaxIndex(output);
+            guessed.append(guess);
+            confidences[i] = output[guess];
+        }
+
+        return new Result(image.toString(), guessed.toString(), confidences, null);
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        return Files.isRegularFile(file) && (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg"));
+    }
+
+    /**
+     * Reads a directory of pictures, or the listed pictures, and prints one line for every
+     * picture as soon as it is read: path, digits and the confidence of every digit, separated by tabs.
+     * Usage: BatchReader [-t threads] network (directory | pictures...)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int first = 0;
+        if(args.length > 1 && args[0].equals("-t")){
+            threads = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if(args.length - first < 2){
+            System.err.println("Usage: BatchReader [-t threads] <network file or directory> <directory | pictures...>");
+            return;
+        }
+
+        String nnPath = args[first];
+        List<Path> inputs = new ArrayList<>();
+        for(int i = first + 1; i < args.length; i++){
+            inputs.add(Path.of(args[i]));
+        }
+
+        AtomicInteger read = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Consumer<Result> printer = result -> {
+            if(result.error() != null){
+                failed.incrementAndGet();
+                System.err.println(result.id() + "\tERROR\t" + result.error());
+                return;
+            }
+            read.incrementAndGet();
+
+            StringBuilder line = new StringBuilder(result.id()).append('\t').append(result.digits()).append('\t');
+            for(int i=0; i<result.confidences().length; i++){
+                line.append(i == 0 ? "" : " ").append(String.format(Locale.ROOT, "%.3f", result.confidences()[i]));
+            }
+            System.out.println(line);
+        };
+
+        long start = System.nanoTime();
+        try(NumbersReader reader = new NumbersReader(Precision.FLOAT)){
+            BatchReader batch = new BatchReader(reader, nnPath, threads);
+            if(inputs.size() == 1 && Files.isDirectory(inputs.getFirst())){
+                batch.readDirectory(inputs.getFirst(), printer);
+            } else {
+                batch.readAll(inputs, printer);
+            }
+        }
+
+        System.err.printf("Read %d pictures (%d failed) in %d ms%n", read.get() + failed.get(), failed.get(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+}
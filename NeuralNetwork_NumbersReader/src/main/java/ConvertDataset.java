@@ -0,0 +1,106 @@
+import data.DataReader;
+import data.DataReaderMNIST;
+import data.IdxFile;
+import data.ImageStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Converts a data set into the IDX files TrainMain loads (see IdxFile), once, so the training does not
+ * parse the MNIST CSV or decode thousands of pictures every time it starts.
+ * The data set is an MNIST CSV file, or a directory with subdirectories 0 - 9 of processed 28x28
+ * pictures (like the ones DataReader.processDigitsDirectory makes).
+ * Usage: ConvertDataset (mnist.csv | directory) outputPrefix
+ * writes outputPrefix-images-idx3-ubyte and outputPrefix-labels-idx1-ubyte.
+ */
+public class ConvertDataset {
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2){
+            System.err.println("Usage: ConvertDataset <mnist.csv | directory with subdirectories 0-9> <output prefix>");
+            return;
+        }
+
+        long start = System.nanoTime();
+        ImageStore store = convert(args[0], args[1]);
+
+        System.out.printf("Wrote %d images (%dx%d) to %s and %s in %d ms%n", store.size(), store.getRows(), store.getCols(),
+                IdxFile.imagesPath(args[1]), IdxFile.labelsPath(args[1]), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Reads the data set from its IDX files, or converts it and writes them if they do not exist yet,
+     * cannot be read or the source was changed after they were converted. If the source is gone,
+     * the IDX files are used as they are.
+     * @param source MNIST CSV file, or a directory with subdirectories 0 - 9
+     * @param cachePrefix prefix of the IDX files
+     */
+    static ImageStore load(String source, String cachePrefix) throws IOException {
+        Path images = IdxFile.imagesPath(cachePrefix);
+        Path labels = IdxFile.labelsPath(cachePrefix);
+        if(Files.exists(images) && Files.exists(labels)){
+            boolean fresh = !new File(source).exists();
+            if(!fresh){
+                long sourceTime = lastModified(source);
+                fresh = Files.getLastModifiedTime(images).toMillis() == sourceTime
+                        && Files.getLastModifiedTime(labels).toMillis() == sourceTime;
+            }
+            if(fresh){
+                try {
+                    return IdxFile.read(cachePrefix);
+                } catch (IOException | IllegalArgumentException e) {
+                    System.err.println("Converting " + source + " again, " + e.getMessage());
+                }
+            }
+        }
+
+        return convert(source, cachePrefix);
+    }
+
+    /**
+     * Converts the data set into IDX files. Both files get the time of the newest part of the source,
+     * taken before the source is read, so a picture changed while it is converted (which can take
+     * minutes) makes the files stale for load.
+     */
+    static ImageStore convert(String source, String prefix) throws IOException {
+        FileTime sourceTime = FileTime.fromMillis(lastModified(source));
+        ImageStore store = read(source);
+        IdxFile.write(store, prefix);
+        Files.setLastModifiedTime(IdxFile.labelsPath(prefix), sourceTime);
+        Files.setLastModifiedTime(IdxFile.imagesPath(prefix), sourceTime);
+        return store;
+    }
+
+    /*Adding or removing a picture changes the time of its subdirectory, a picture copied over or edited
+    * in place only changes its own time, so the newest of all of them is taken.*/
+    private static long lastModified(String source) {
+        File file = new File(source);
+        long time = file.lastModified();
+        for(int i = 0; file.isDirectory() && i <= 9; i++){
+            File subDirectory = new File(file, String.valueOf(i));
+            time = Math.max(time, subDirectory.lastModified());
+            File[] pictures = subDirectory.listFiles(File::isFile);
+            for(int j = 0; pictures != null && j < pictures.length; j++){
+                time = Math.max(time, pictures[j].lastModified());
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Reads an MNIST CSV file, or the pictures in the subdirectories 0 - 9 of a directory.
+     */
+    static ImageStore read(String source) {
+        if(!new File(source).isDirectory()){
+            return new DataReaderMNIST().readStore(source);
+        }
+
+        ImageStore store = new ImageStore(28, 28);
+        new DataReader().readSubDirectories(source).forEach(store::add);
+        return store;
+    }
+}
@@ -1,69 +1,214 @@
+import data.BinaryImage;
 import data.DataReader;
 import data.DigitsExtractor;
 import data.Image;
 import data.ImageProcessor;
-import network.NeuralNetwork;
+import data.Precision;
+import network.CompiledNetwork;
+import network.ModelRegistry;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
-public class NumbersReader {
+public class NumbersReader implements AutoCloseable {
 
+    /*Loaded networks are kept here, so a network file is loaded only once and not for every call.
+    * They are converted to the precision given in the constructor. Saved networks are in double
+    * precision, FLOAT makes guessing faster and is precise enough for reading digits.*/
+    private final ModelRegistry models;
 
-    public String readNumbers(String inputImagePath, String nnPath) {
+    public NumbersReader() {
+        this(Precision.DOUBLE);
+    }
 
+    public NumbersReader(Precision precision) {
+        this.models = new ModelRegistry(precision, 4);
+    }
 
-        String processedImagePath = "processed_jmbag/"+ "processed_" + getImageName(inputImagePath);
-        DataReader dataReader = new DataReader();
-        dataReader.processDigitsImage(inputImagePath, processedImagePath);
+    /*If set, every step of readNumbers is also saved into this directory as pictures, the way
+    * the steps were passed through files before: the processed image, the extracted digits
+    * in extracted_digits and the scaled digits in extracted_digits_scaled. Only for debugging,
+    * the subdirectories are cleared on every call, so it should not be used by many threads.*/
+    private volatile Path debugDirectory;
 
+    public void setDebugDirectory(String debugDirectory) {
+        this.debugDirectory = debugDirectory == null ? null : Path.of(debugDirectory);
+    }
 
-        /*Those box sizes work great with pictures from iPhone 12, 13, 14, 15.
-        * If the original picture resolution is significantly smaller than 2K,
-        * adjust box sizes by lowering them.*/
-        DigitsExtractor digitsExtractor = new DigitsExtractor(20, 600);
-        deleteAllFilesInDirectory("processed_jmbag/extracted_digits");
-        digitsExtractor.extractDigitsFromImageFile(processedImagePath, "processed_jmbag/extracted_digits");
+    /*If set, the digits are searched for in a copy of the picture of at most 512 pixels and the box sizes
+    * follow the size of the picture (see Workspace). A bit faster with big photos, but digits closer together
+    * than the picture is shrunk (8 pixels of a 4032 pixels wide photo) are found as one box. Off by default.*/
+    private volatile boolean proxySearch = false;
 
-        ImageProcessor processor = new ImageProcessor();
-        List<BufferedImage> extractedDigitsList = dataReader.readDirectory("processed_jmbag/extracted_digits");
-        List<BufferedImage> scaled = new ArrayList<>();
-        extractedDigitsList.forEach(image -> {scaled.add(processor.scale(image));});
-
-        deleteAllFilesInDirectory("processed_jmbag/extracted_digits_scaled");
-        for(int i=0; i<scaled.size(); i++){
-            try {
-                ImageIO.write(scaled.get(i), "png", new File("processed_jmbag/extracted_digits_scaled/" + i + ".png"));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    public void setProxySearch(boolean proxySearch) {
+        this.proxySearch = proxySearch;
+    }
+
+    public boolean isProxySearch() {
+        return proxySearch;
+    }
+
+    public String readNumbers(String inputImagePath, String nnPath) {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new File(inputImagePath));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if(image == null){
+            throw new IllegalArgumentException("Not a supported image: " + inputImagePath);
         }
 
-        List<Image> digits = dataReader.readData_unknownLabel("processed_jmbag/extracted_digits_scaled");
+        return readNumbers(image, getImageName(inputImagePath), nnPath);
+    }
+
+    /**
+     * Reads the digits from an encoded image (JPEG, PNG...).
+     * @param encodedImage bytes of the image file
+     * @param nnPath network file, or a directory with networks (see loadNN)
+     * @return guessed digits separated with spaces
+     */
+    public String readNumbers(byte[] encodedImage, String nnPath) {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(encodedImage));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if(image == null){
+            throw new IllegalArgumentException("Bytes are not a supported image");
+        }
+
+        return readNumbers(image, nnPath);
+    }
+
+    /**
+     * Reads the digits from the image. Everything is done in the memory, nothing is written
+     * to the disk unless the debug directory is set, so many threads can read at the same time.
+     * @param image picture of the digits
+     * @param nnPath network file, or a directory with networks (see loadNN)
+     * @return guessed digits separated with spaces, from left to right
+     */
+    public String readNumbers(BufferedImage image, String nnPath) {
+        return readNumbers(image, "image.png", nnPath);
+    }
 
+    private String readNumbers(BufferedImage image, String imageName, String nnPath) {
+        List<Image> digits = extractDigits(image, imageName);
 
-        NeuralNetwork network = loadNN(nnPath);
+        CompiledNetwork network = loadNN(nnPath);
         StringBuilder output = new StringBuilder();
-        for (var digit: digits) {
-            System.out.println(digit);
-            output.append(network.guess(digit) + " ");
+        for (int guess: network.guess(digits)) {     //all the digits go through the network together
+            output.append(guess + " ");
         }
 
         return output.toString();
     }
 
+    /**
+     * Finds the digits in the image and prepares them for the network: binarized,
+     * cropped and scaled to 28x28 pixels.
+     * @param image picture of the digits, it is not changed
+     * @return digits from left to right, with label -1
+     */
+    public List<Image> extractDigits(BufferedImage image) {
+        return extractDigits(image, "image.png");
+    }
+
+    private List<Image> extractDigits(BufferedImage image, String imageName) {
+        //a single picture is filtered on all the cores, so one big photo is read as fast as possible
+        return extractDigits(image, imageName, new Workspace(new ImageProcessor(ForkJoinPool.commonPool(), ImageProcessor.DEFAULT_TILE_ROWS), proxySearch));
+    }
+
+    /**
+     * Everything one thread needs to prepare the digits, kept between images so the
+     * buffers inside are reused. A Workspace must not be used by two threads at the same time.
+     */
+    static final class Workspace {
+        final ImageProcessor processor;
+
+        final DigitsExtractor digitsExtractor;
+
+        final DataReader dataReader = new DataReader();
+
+        Workspace(boolean proxySearch) {
+            this(new ImageProcessor(), proxySearch);     //many pictures are read at once, so every picture stays on its own thread
+        }
+
+        Workspace(ImageProcessor processor, boolean proxySearch) {
+            this.processor = processor;
+            if(proxySearch){
+                /*The same box sizes as below relative to a 4032 pixels wide photo, so they shrink with smaller
+                * pictures. The digits are searched for in a copy of at most 512 pixels, a photo is halved three times for it.*/
+                digitsExtractor = DigitsExtractor.relative(20.0/4032, 600.0/4032);
+                digitsExtractor.setProxySize(512);
+            } else {
+                /*Those box sizes work great with pictures from iPhone 12, 13, 14, 15.
+                * If the original picture resolution is significantly smaller than 2K,
+                * adjust box sizes by lowering them.*/
+                digitsExtractor = new DigitsExtractor(20, 600);
+            }
+        }
+    }
+
+    List<Image> extractDigits(BufferedImage image, String imageName, Workspace workspace) {
+        ImageProcessor processor = workspace.processor;
+        BinaryImage processedImage = processor.toBinaryImage(image);
+
+        List<BufferedImage> extractedDigits = workspace.digitsExtractor.extractDigits(processedImage);
+
+        List<BufferedImage> scaled = new ArrayList<>();
+        extractedDigits.forEach(digit -> {scaled.add(processor.scale(digit));});
+
+        List<Image> digits = new ArrayList<>();
+        for (var digit: scaled) {
+            digits.add(workspace.dataReader.readImage(digit, -1));
+        }
+
+        Path debug = debugDirectory;
+        if(debug != null){
+            dumpDebug(debug, imageName, processedImage, extractedDigits, scaled, digits);
+        }
+
+        return digits;
+    }
+
+    private static void dumpDebug(Path debug, String imageName, BinaryImage processedImage,
+                                  List<BufferedImage> extractedDigits, List<BufferedImage> scaled, List<Image> digits) {
+        try {
+            Path extractedDirectory = debug.resolve("extracted_digits");
+            Path scaledDirectory = debug.resolve("extracted_digits_scaled");
+            Files.createDirectories(extractedDirectory);
+            Files.createDirectories(scaledDirectory);
+            deleteAllFilesInDirectory(extractedDirectory.toString());
+            deleteAllFilesInDirectory(scaledDirectory.toString());
+
+            ImageIO.write(processedImage.toBufferedImage(), "png", debug.resolve("processed_" + imageName).toFile());
+
+            String baseName = imageName.contains(".") ? imageName.substring(0, imageName.lastIndexOf('.')) : imageName;
+            for(int i=0; i<extractedDigits.size(); i++){
+                ImageIO.write(extractedDigits.get(i), "png", extractedDirectory.resolve("EXTRACTED_" + baseName + "_" + i + ".png").toFile());
+                ImageIO.write(scaled.get(i), "png", scaledDirectory.resolve(i + ".png").toFile());
+                System.out.println(digits.get(i));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public int guessDigitFromFile(String inputImagePath, String nnPath) {
         DataReader dataReader = new DataReader();
         Image digitImage = dataReader.readImageFromFile(inputImagePath);
-        NeuralNetwork network = loadNN(nnPath);
+        CompiledNetwork network = loadNN(nnPath);
 
         return network.guess(digitImage);
     }
@@ -98,24 +243,28 @@ public class NumbersReader {
     }
 
 
-    private NeuralNetwork loadNN(String pathToNN) {
-        NeuralNetwork neuralNetwork;
+    /**
+     * Returns the network saved in the given file, loaded only the first time or when the file changes.
+     * If the path is a directory (for example "networks"), the newest network in it is used, and
+     * a network saved there later replaces it without restarting.
+     */
+    CompiledNetwork loadNN(String pathToNN) {
         try {
-            FileInputStream fis = new FileInputStream(pathToNN);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            neuralNetwork = (NeuralNetwork) ois.readObject();
-            ois.close();
-            fis.close();
-        } catch (IOException | ClassNotFoundException e) {
+            return models.get(Path.of(pathToNN));
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
 
-        return neuralNetwork;
+    @Override
+    public void close() throws IOException {
+        models.close();
     }
 
 
     public static void main(String[] args) {
-        NumbersReader reader = new NumbersReader();
+        NumbersReader reader = new NumbersReader(Precision.FLOAT);
+        reader.setDebugDirectory("processed_jmbag");    //saves the steps as pictures, remove to read without touching the disk
 
         String jmbag = reader.readNumbers("C:\\Faks\\numbers_reader\\pre_processed_jmbag\\moj_novi2.jpg", "networks/nn_2024-06-12_18-33-17_85%.ser");
         System.out.println(jmbag);
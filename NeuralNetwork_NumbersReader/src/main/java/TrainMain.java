@@ -1,18 +1,20 @@
+import data.Augmenter;
 import data.DataReader;
-import data.DataReaderMNIST;
 import data.Image;
+import data.ImageStore;
+import data.MatrixUtility;
+import network.ModelFile;
 import network.NetworkBuilder;
 import network.NeuralNetwork;
+import network.ParallelTrainer;
 
 import java.awt.image.BufferedImage;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
-
-import static java.util.Collections.shuffle;
+import java.util.Random;
 
 public class TrainMain {
     /*public static void main(String[] args) {
@@ -35,30 +37,33 @@ public class TrainMain {
 
     }*/
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         DataReader dataReader = new DataReader();
 
-        /*Call this only when some data set (picture directories) were updated with new pictures to process them.*/
+        /*Call this when some data set (picture directories) were updated with new pictures to process them.
+        * Only the new and changed pictures are processed, the others are remembered from the last call.*/
         //dataReader.processDigitsDirectory("C:\\Faks\\numbers_reader\\pre_processed_images_test", "C:\\Faks\\numbers_reader\\processed_images_test");
 
         //OVO DOLJE JE MAIN ZA TRENIRANJE I TESTIRANJE
         System.out.println("Starting data loading...");
+        System.out.println("SIMD kernels: " + (MatrixUtility.SIMD ? "on" : "off"));    //turned on with -Dnumbersreader.simd=true
 
-        DataReaderMNIST dataReaderMNIST = new DataReaderMNIST();
         DataReader dataReaderImages = new DataReader();
 
         //List<Image> imagesTrain = dataReader.readSubDirectories("C:\\Faks\\numbers_reader\\processed_images");
-        List<Image> imagesTrain = dataReaderMNIST.readData("C:\\Faks\\numbers_reader\\MNIST_data\\mnist_train.csv");
-        List<Image> imagesTest = dataReader.readSubDirectories("C:\\Faks\\numbers_reader\\processed_images_test");
+        /*Both sets are converted into IDX files the first time (and after they change), every next start just loads those.
+        * Images are kept as bytes and made when needed.*/
+        ImageStore imagesTrain = ConvertDataset.load("C:\\Faks\\numbers_reader\\MNIST_data\\mnist_train.csv", "C:\\Faks\\numbers_reader\\MNIST_data\\mnist_train");
+        List<Image> imagesTest = ConvertDataset.load("C:\\Faks\\numbers_reader\\processed_images_test", "C:\\Faks\\numbers_reader\\processed_images_test").asList();
 
-        imagesTrain.forEach(Image::binarizeSimple);
+        imagesTrain.binarize(100);  //same as Image::binarizeSimple
         //imagesTest.forEach(Image::normalize);
 
         System.out.println("Training images set size: " + imagesTrain.size());
         System.out.println("Test images set size: " + imagesTest.size());
 
         for(int i = 0; i < 5000; i=i+500){
-            System.out.println(imagesTrain.get(i).toString());
+            System.out.println(imagesTrain.getImage(i).toString());
         }
         long SEED = 123;
         NetworkBuilder builder = new NetworkBuilder(28, 28, 256*100);   //probaj manji scaling
@@ -66,6 +71,7 @@ public class TrainMain {
         builder.addConvolutionLayer(8, 5, 1, 0.1, SEED);
         builder.addMaxPoolLayer(3, 2);
         builder.addFullyConnectedLayer(10, 0.1, SEED, false);
+        builder.setBatchSize(32);   //images per weight update, every batch is split between the training threads
 
         /*builder.addConvolutionLayer(32, 3, 1, 0.001, SEED);
         builder.addMaxPoolLayer(3, 2);
@@ -82,11 +88,25 @@ public class TrainMain {
 
         int epochs = 8;
 
-        for (int i = 0; i < epochs; i++) {
-            shuffle(imagesTrain);   //so the same digits are not grouped together, incoming one after another
-            network.train(imagesTrain);
-            double rate = network.testAccuracy(imagesTest);
-            System.out.println("Success after epoch " + (i+1) + " is:" + rate);
+        /*Every epoch trains on new random variants (rotated, zoomed, contrast, brightness) of the training images,
+        * made by worker threads ahead of the trainer instead of augmented pictures on the disk.
+        * Use imagesTrain.asList() instead to train on the images as they are.*/
+        int cores = Runtime.getRuntime().availableProcessors();
+        int augmenterThreads = Math.max(1, cores/4);
+        int trainerThreads = Math.max(1, cores - augmenterThreads);    //together they use every core once
+        Augmenter augmenter = new Augmenter(SEED);
+        Iterable<Image> trainingImages = augmenter.variants(imagesTrain, augmenterThreads);
+
+        Random random = new Random();
+        try (ParallelTrainer trainer = new ParallelTrainer(network, trainerThreads)) {
+            for (int i = 0; i < epochs; i++) {
+                imagesTrain.shuffle(random);   //so the same digits are not grouped together, incoming one after another
+                long start = System.nanoTime();
+                trainer.train(trainingImages);
+                long seconds = (System.nanoTime() - start) / 1_000_000_000;
+                double rate = network.testAccuracy(imagesTest);
+                System.out.println("Success after epoch " + (i+1) + " is:" + rate + " (trained in " + seconds + "s)");
+            }
         }
 
         saveNeuralNetwork(network);
@@ -99,12 +119,8 @@ public class TrainMain {
         try {
             DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
             String formattedDateTime = LocalDateTime.now().format(formatter);
-            String fileName = "networks/nn_" + formattedDateTime + ".ser";
-            FileOutputStream fos = new FileOutputStream(fileName);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(neuralNetwork);
-            oos.close();
-            fos.close();
+            String fileName = "networks/nn_" + formattedDateTime + ".nn";
+            ModelFile.save(neuralNetwork, Path.of(fileName));
         } catch (IOException e) {
             System.out.println(e.getMessage());;
         }
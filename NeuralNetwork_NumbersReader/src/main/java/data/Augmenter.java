@@ -0,0 +1,269 @@
+package data;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.random.RandomGenerator;
+
+/**
+ * Makes random variants of the images while the network trains, instead of saving thousands of
+ * augmented pictures with ImagesAugmentor/augmentor.py and decoding them again. Every operation is
+ * done with its own probability, in the same order and with the same defaults as the Python script:
+ * rotation (0.7, up to 25 degrees left or right), zoom into a random part of the image (0.5, 95% of
+ * the area), contrast (0.5, 0.8 - 1.2) and brightness (0.5, 0.8 - 1.2).
+ * Rotation and zoom are one pass over the pixels with bilinear interpolation, the parts that come
+ * from outside of the image are 0 (background).
+ */
+public final class Augmenter {
+
+    private static final int CHUNK = 256;   //images augmented by a worker at once
+
+    private double _rotationProbability = 0.7;
+    private double _maxRotation = 25;
+    private double _zoomProbability = 0.5;
+    private double _zoomArea = 0.95;
+    private double _contrastProbability = 0.5;
+    private double _minContrast = 0.8;
+    private double _maxContrast = 1.2;
+    private double _brightnessProbability = 0.5;
+    private double _minBrightness = 0.8;
+    private double _maxBrightness = 1.2;
+
+    private final Random _seeds;
+
+    /**
+     * @param seed every epoch (every iteration of variants) gets new variants, the same seed gives the same
+     * variants for the first epoch, the same for the second and so on, whatever the number of threads
+     */
+    public Augmenter(long seed) {
+        this._seeds = new Random(seed);
+    }
+
+    /**
+     * @param probability how often an image is rotated
+     * @param maxDegrees biggest rotation to the left and to the right
+     */
+    public void setRotation(double probability, double maxDegrees) {
+        this._rotationProbability = checkProbability(probability);
+        this._maxRotation = maxDegrees;
+    }
+
+    /**
+     * @param probability how often an image is zoomed
+     * @param area part of the area of the image that is zoomed to the whole image, 0 - 1
+     */
+    public void setZoom(double probability, double area) {
+        if(!(area > 0 && area <= 1)){
+            throw new IllegalArgumentException("Zoom area must be more than 0 and at most 1, was " + area);
+        }
+        this._zoomProbability = checkProbability(probability);
+        this._zoomArea = area;
+    }
+
+    /**
+     * @param probability how often the contrast is changed
+     * @param min smallest factor of the distances from the mean value, 1 leaves the image as it is
+     * @param max biggest factor
+     */
+    public void setContrast(double probability, double min, double max) {
+        this._contrastProbability = checkProbability(probability);
+        this._minContrast = min;
+        this._maxContrast = max;
+    }
+
+    /**
+     * @param probability how often the brightness is changed
+     * @param min smallest factor every value is multiplied with, 1 leaves the image as it is
+     * @param max biggest factor
+     */
+    public void setBrightness(double probability, double min, double max) {
+        this._brightnessProbability = checkProbability(probability);
+        this._minBrightness = min;
+        this._maxBrightness = max;
+    }
+
+    /**
+     * Makes one random variant of an image of the store.
+     * @return new Image with its own bytes and the label of the original
+     */
+    public Image augment(ImageStore store, int index, RandomGenerator random) {
+        int length = store.getRows()*store.getCols();
+        byte[] out = new byte[length];
+        augment(store.pixels(), index*length, store.getRows(), store.getCols(), out, 0, new float[length], random);
+        return new Image(out, 0, store.getRows(), store.getCols(), store.getLabel(index));
+    }
+
+    /**
+     * Gives a new variant of every image of the store, in the order of the store. The variants are made
+     * by worker threads a few hundred images ahead of the one iterating (the trainer), and every iteration
+     * (epoch) gets new variants. The store must not be shuffled while it is iterated.
+     * @param store images to make the variants of
+     * @param threads worker threads making the variants
+     * @return images to train on, for example with ParallelTrainer.train
+     */
+    public Iterable<Image> variants(ImageStore store, int threads) {
+        if(threads < 1){
+            throw new IllegalArgumentException("Number of threads must be at least 1, was " + threads);
+        }
+        return () -> new Variants(store, threads, _seeds.nextLong());
+    }
+
+    /*Variants of the images from start to end, all of them in one new byte[]. Every image gets its own
+    * random numbers made from the seed and its index, so threads do not change the result.*/
+    private Image[] augmentChunk(ImageStore store, int start, int end, long seed) {
+        int rows = store.getRows();
+        int cols = store.getCols();
+        int length = rows*cols;
+        byte[] pixels = store.pixels();
+        byte[] out = new byte[(end - start)*length];
+        float[] work = new float[length];
+
+        Image[] images = new Image[end - start];
+        for(int i = start; i < end; i++){
+            int offset = (i - start)*length;
+            augment(pixels, i*length, rows, cols, out, offset, work, new SplittableRandom(seed + i*0x9E3779B97F4A7C15L));
+            images[i - start] = new Image(out, offset, rows, cols, store.getLabel(i));
+        }
+        return images;
+    }
+
+    private void augment(byte[] pixels, int offset, int rows, int cols, byte[] out, int outOffset, float[] work, RandomGenerator random) {
+        double centerX = (cols - 1)/2.0;
+        double centerY = (rows - 1)/2.0;
+
+        //rotation of the image, then a random part of the rotated image stretched to the whole image
+        double angle = random.nextDouble() < _rotationProbability ? Math.toRadians(uniform(random, -_maxRotation, _maxRotation)) : 0;
+        double scale = 1;
+        double shiftX = 0;
+        double shiftY = 0;
+        if(random.nextDouble() < _zoomProbability){
+            scale = 1/Math.sqrt(_zoomArea);
+            shiftX = (random.nextDouble() - 0.5)*(cols - cols/scale);
+            shiftY = (random.nextDouble() - 0.5)*(rows - rows/scale);
+        }
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+
+        /*For every pixel of the variant, find where it comes from in the original: first undo the zoom,
+        * then the rotation around the center.*/
+        double sum = 0;
+        for(int y = 0; y < rows; y++){
+            for(int x = 0; x < cols; x++){
+                double u = (x - centerX)/scale + shiftX;
+                double v = (y - centerY)/scale + shiftY;
+                double sourceX = centerX + cos*u + sin*v;
+                double sourceY = centerY - sin*u + cos*v;
+
+                float value = (float) bilinear(pixels, offset, rows, cols, sourceX, sourceY);
+                work[y*cols + x] = value;
+                sum += value;
+            }
+        }
+
+        double contrast = random.nextDouble() < _contrastProbability ? uniform(random, _minContrast, _maxContrast) : 1;
+        double brightness = random.nextDouble() < _brightnessProbability ? uniform(random, _minBrightness, _maxBrightness) : 1;
+        double mean = sum/(rows*cols);
+        for(int i = 0; i < rows*cols; i++){
+            double value = ((work[i] - mean)*contrast + mean)*brightness;
+            out[outOffset + i] = (byte) Math.clamp(Math.round(value), 0, 255);
+        }
+    }
+
+    /*Value between the 4 pixels around (x, y), pixels outside of the image are 0.*/
+    private static double bilinear(byte[] pixels, int offset, int rows, int cols, double x, double y) {
+        int left = (int) Math.floor(x);
+        int top = (int) Math.floor(y);
+        double dx = x - left;
+        double dy = y - top;
+
+        double topValue = pixel(pixels, offset, rows, cols, left, top)*(1 - dx) + pixel(pixels, offset, rows, cols, left + 1, top)*dx;
+        double bottomValue = pixel(pixels, offset, rows, cols, left, top + 1)*(1 - dx) + pixel(pixels, offset, rows, cols, left + 1, top + 1)*dx;
+        return topValue*(1 - dy) + bottomValue*dy;
+    }
+
+    private static int pixel(byte[] pixels, int offset, int rows, int cols, int x, int y) {
+        if(x < 0 || y < 0 || x >= cols || y >= rows){
+            return 0;
+        }
+        return pixels[offset + y*cols + x] & 0xFF;
+    }
+
+    private static double uniform(RandomGenerator random, double min, double max) {
+        return min + (max - min)*random.nextDouble();
+    }
+
+    private static double checkProbability(double probability) {
+        if(!(probability >= 0 && probability <= 1)){
+            throw new IllegalArgumentException("Probability must be from 0 to 1, was " + probability);
+        }
+        return probability;
+    }
+
+    /*One epoch of variants. Workers make chunks of images ahead, the iterator takes them in order.*/
+    private final class Variants implements Iterator<Image> {
+        private final ImageStore _store;
+        private final long _seed;
+        private final ThreadPoolExecutor _pool;
+        private final int _ahead;
+        private final Queue<Future<Image[]>> _queue = new ArrayDeque<>();
+        private int _nextStart = 0;
+        private Image[] _chunk = new Image[0];
+        private int _position = 0;
+
+        Variants(ImageStore store, int threads, long seed) {
+            this._store = store;
+            this._seed = seed;
+            this._ahead = 2*threads;
+            //threads stop when they have nothing to do, also when the epoch is not iterated to the end
+            this._pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    Thread.ofPlatform().daemon().name("augmenter-", 0).factory());
+            _pool.allowCoreThreadTimeOut(true);
+            submit();
+        }
+
+        private void submit() {
+            while(_queue.size() < _ahead && _nextStart < _store.size()){
+                int start = _nextStart;
+                int end = Math.min(start + CHUNK, _store.size());
+                _queue.add(_pool.submit(() -> augmentChunk(_store, start, end, _seed)));
+                _nextStart = end;
+            }
+            if(_nextStart >= _store.size()){
+                _pool.shutdown();   //the submitted chunks are still made
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _position < _chunk.length || !_queue.isEmpty();
+        }
+
+        @Override
+        public Image next() {
+            if(_position == _chunk.length){
+                if(_queue.isEmpty()){
+                    throw new NoSuchElementException();
+                }
+                try {
+                    _chunk = _queue.remove().get();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for augmented images", e);
+                } catch (ExecutionException e){
+                    throw new IllegalStateException("Augmenting images failed", e.getCause());
+                }
+                _position = 0;
+                submit();
+            }
+            return _chunk[_position++];
+        }
+    }
+}
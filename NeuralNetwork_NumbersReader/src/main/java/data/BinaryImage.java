@@ -0,0 +1,146 @@
+package data;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Black and white picture made by ImageProcessor, one byte for every pixel, row by row.
+ * A pixel is 1 where the picture was darker than the threshold (the ink of the digits) and
+ * 0 everywhere else. Binarized pictures used to be full size ARGB images, this takes a quarter
+ * of the memory and the digits can be searched in it without going through any color model.
+ */
+public final class BinaryImage {
+
+    //reads and writes 8 pixels of a byte[] as one long
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final int _width;
+    private final int _height;
+    private final byte[] _pixels;
+
+    /**
+     * @param width width of the picture
+     * @param height height of the picture
+     * @param pixels 0 or 1 for every pixel, row by row, at least width*height of them.
+     *               The array is used as it is, not copied.
+     */
+    public BinaryImage(int width, int height, byte[] pixels) {
+        if(width < 0 || height < 0 || pixels.length < width*height){
+            throw new IllegalArgumentException("Cannot make a " + width + "x" + height + " image from " + pixels.length + " pixels");
+        }
+        this._width = width;
+        this._height = height;
+        this._pixels = pixels;
+    }
+
+    /**
+     * Makes a BinaryImage from an already binarized picture (like the ones processImage_noScaling
+     * returns, or the same pictures saved to a file). Pixels whose blue value is at least 128 are set.
+     * @param image binarized picture
+     * @return BinaryImage with the same pixels set
+     */
+    public static BinaryImage of(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = Pixels.readArgb(image, null);
+
+        byte[] pixels = new byte[width*height];
+        for(int i = 0; i < pixels.length; i++){
+            pixels[i] = (byte) ((argb[i] & 0xFF) >>> 7);
+        }
+        return new BinaryImage(width, height, pixels);
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * @return the array with the pixels, shared with this image
+     */
+    public byte[] pixels() {
+        return _pixels;
+    }
+
+    public boolean isSet(int x, int y) {
+        return _pixels[y*_width + x] != 0;
+    }
+
+    /**
+     * Makes a smaller copy of the picture, 2^shift times smaller on both sides. A pixel of the copy
+     * is set if any pixel of its square in this picture is set, so everything set stays connected
+     * and nothing thin disappears. Shifting by 1, 2, 3... gives the levels of a pyramid.
+     * @param shift how many times the picture is halved
+     * @return new smaller picture, its sides are rounded up
+     */
+    public BinaryImage downscale(int shift) {
+        int factor = 1 << shift;
+        int width = ((_width - 1) >> shift) + 1;
+        int height = ((_height - 1) >> shift) + 1;
+        byte[] pixels = new byte[width*height];
+        byte[] rows = new byte[Math.max(width << shift, _width + 7)];   //rows of one square joined, zeros after the picture
+
+        for(int y = 0; y < height; y++){
+            Arrays.fill(rows, (byte) 0);
+            for(int r = y*factor; r < Math.min((y + 1)*factor, _height); r++){
+                int from = r*_width;
+                int x = 0;
+                for(; x + 8 <= _width; x += 8){
+                    LONGS.set(rows, x, (long) LONGS.get(rows, x) | (long) LONGS.get(_pixels, from + x));
+                }
+                for(; x < _width; x++){
+                    rows[x] |= _pixels[from + x];
+                }
+            }
+            for(int x = 0; x < width; x++){
+                byte set = 0;
+                for(int c = x << shift, end = c + factor; c < end; c++){
+                    set |= rows[c];
+                }
+                pixels[y*width + x] = set;
+            }
+        }
+        return new BinaryImage(width, height, pixels);
+    }
+
+    /**
+     * @return the whole picture as an ARGB image, set pixels white and the others black,
+     * the way the binarized pictures were saved before
+     */
+    public BufferedImage toBufferedImage() {
+        return crop(0, 0, _width, _height);
+    }
+
+    /**
+     * Copies a part of the picture into a new ARGB image, set pixels white and the others black.
+     * @param x left edge of the part
+     * @param y top edge of the part
+     * @param width width of the part
+     * @param height height of the part
+     * @return new image of the given size
+     */
+    public BufferedImage crop(int x, int y, int width, int height) {
+        if(x < 0 || y < 0 || width < 1 || height < 1 || x + width > _width || y + height > _height){
+            throw new IllegalArgumentException("Part " + x + ", " + y + ", " + width + "x" + height + " is not inside the "
+                    + _width + "x" + _height + " image");
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();     //new image, so rows follow each other
+        for(int r = 0; r < height; r++){
+            int from = (y + r)*_width + x;
+            for(int c = 0; c < width; c++){
+                argb[r*width + c] = _pixels[from + c] != 0 ? 0xFFFFFFFF : 0xFF000000;
+            }
+        }
+        return image;
+    }
+}
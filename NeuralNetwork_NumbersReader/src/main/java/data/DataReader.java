@@ -9,17 +9,24 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Class used for reading a training or testing data set (folder of pictures)
  * into an Image classes that are convenient for input in the NN.
+ * Directories are read and processed on all the cores, the pictures still come
+ * in the order the directory lists them (see ImagePipeline).
  */
 public class DataReader {
 
     private final int rows = 80;
     private final int columns = 45;
 
+    //pictures decoded and processed at the same time when a directory is read
+    private final int threads = Runtime.getRuntime().availableProcessors();
+
 
     /**
      * Reads all images from a given directory and returns them as a list of BufferedImage objects.
@@ -28,18 +35,8 @@ public class DataReader {
      * @return A list of BufferedImage objects representing the images in the directory.
      */
     public List<BufferedImage> readDirectory(String dirPath) {
-        Path path = Paths.get(dirPath);
-
         List<BufferedImage> images = new ArrayList<>();
-
-        try(DirectoryStream<Path> imagesStream = Files.newDirectoryStream(path)){
-            for(Path imgPath : imagesStream){
-                BufferedImage image = ImageIO.read(new File(String.valueOf(imgPath)));
-                images.add(image);
-            }
-        }catch(IOException e){
-            System.err.println(e.getMessage());
-        }
+        ImagePipeline.run(listFiles(Paths.get(dirPath), false), threads, (file, image) -> image, images::add, dirPath);
         return images;
     }
 
@@ -50,29 +47,20 @@ public class DataReader {
      * @return List of Image objects created of the given folder with images
      */
     public List<Image> readData(String dirPath){
-        Path path = Paths.get(dirPath);
-
         List<Image> images = new ArrayList<>();
 
-        try(DirectoryStream<Path> imagesStream = Files.newDirectoryStream(path)){
-            for(Path imgPath : imagesStream){
-                BufferedImage image = ImageIO.read(new File(String.valueOf(imgPath)));
-
-                String imgName = imgPath.getFileName().toString();
-                int labelIndex = imgName.lastIndexOf('.') - 1;
-                int label;
-                if(labelIndex > 0){
-                    label = Integer.parseInt(String.valueOf(imgName.charAt(labelIndex)));
-                }else{
-                    label = Integer.parseInt(String.valueOf(imgName.charAt(imgName.length()-1)));
-                }
-                double data[][] = readImageMatrix(image);
-
-                images.add(new Image(data, label));
+        ImagePipeline.run(listFiles(Paths.get(dirPath), false), threads, (file, image) -> {
+            String imgName = file.getFileName().toString();
+            int labelIndex = imgName.lastIndexOf('.') - 1;
+            int label;
+            if(labelIndex > 0){
+                label = Integer.parseInt(String.valueOf(imgName.charAt(labelIndex)));
+            }else{
+                label = Integer.parseInt(String.valueOf(imgName.charAt(imgName.length()-1)));
             }
-        }catch(IOException e){
-            System.err.println(e.getMessage());
-        }
+            return readImage(image, label);
+        }, images::add, dirPath);
+
         return images;
     }
 
@@ -84,24 +72,8 @@ public class DataReader {
      * @return List of Image objects created of the given folder with images
      */
     public List<Image> readData_unknownLabel(String dirPath){
-        Path path = Paths.get(dirPath);
-
         List<Image> images = new ArrayList<>();
-
-        try(DirectoryStream<Path> imagesStream = Files.newDirectoryStream(path)){
-            for(Path imgPath : imagesStream){
-                BufferedImage image = ImageIO.read(new File(String.valueOf(imgPath)));
-
-                String imgName = imgPath.getFileName().toString();
-                int labelIndex = imgName.lastIndexOf('.') - 1;
-                int label = -1;
-                double[][] data = readImageMatrix(image);
-
-                images.add(new Image(data, label));
-            }
-        }catch(IOException e){
-            System.err.println(e.getMessage());
-        }
+        ImagePipeline.run(listFiles(Paths.get(dirPath), false), threads, (file, image) -> readImage(image, -1), images::add, dirPath);
         return images;
     }
 
@@ -114,9 +86,8 @@ public class DataReader {
         }
 
         int label = -1;
-        double[][] data = readImageMatrix(img);
 
-        return new Image(data, label);
+        return readImage(img, label);
     }
 
     /** Creates Image object with label from the last character of the input directory Path.
@@ -124,28 +95,16 @@ public class DataReader {
      * @return List of Image objects created of the given folder with images
      */
     public List<Image> readLabeledDirectory(String dirPath){
-        Path path = Paths.get(dirPath);
-
         List<Image> images = new ArrayList<>();
 
         int label = Integer.parseInt(String.valueOf(dirPath.charAt(dirPath.length()-1)));
 
-        try(DirectoryStream<Path> imagesStream = Files.newDirectoryStream(path)){
-            for(Path imgPath : imagesStream){
-                BufferedImage image = ImageIO.read(new File(String.valueOf(imgPath)));
-
-                double[][] data = readImageMatrix(image);
-
-                images.add(new Image(data, label));
-            }
-        }catch(IOException e){
-            System.err.println(e.getMessage());
-        }
+        ImagePipeline.run(listFiles(Paths.get(dirPath), false), threads, (file, image) -> readImage(image, label), images::add, dirPath);
         return images;
     }
 
-    /** Visits all the subdirectories in the given directory and calls
-     * readLabeledDirectory on each of them to make one concatenation of all the
+    /** Visits all the subdirectories in the given directory and reads them like
+     * readLabeledDirectory, all of them at once, to make one concatenation of all the
      * pictures into a List of Images.
      * @param dirPath the directory whose digit labeled subdirectories will be visited
      * @return List of Images from every subdirectory together
@@ -153,19 +112,30 @@ public class DataReader {
     public List<Image> readSubDirectories(String dirPath){
         List<Image> allImages = new ArrayList<>();
 
-        // Loop through all subdirectories named 0-9
-        for (int i = 0; i <= 9; i++) {
-            String subDirPath = dirPath + File.separator + i;
-            File subDir = new File(subDirPath);
+        ImagePipeline.run(listSubDirectories(dirPath, false), threads, (file, image) -> {
+            int label = Integer.parseInt(file.getParent().getFileName().toString());    //subdirectory 0-9
+            return readImage(image, label);
+        }, allImages::add, dirPath);
 
-            if (subDir.isDirectory()) {
-                List<Image> images = readLabeledDirectory(subDirPath);
-                allImages.addAll(images);
-            }
-        }
         return allImages;
     }
 
+    /**
+     * Creates an Image that keeps one byte for every pixel, the same values readImageMatrix gives.
+     * @param image greyscale picture
+     * @param label label of the Image
+     * @return new Image backed by its own bytes
+     */
+    public Image readImage(BufferedImage image, int label) {
+        int[] argb = Pixels.readArgb(image, null);
+
+        byte[] pixels = new byte[argb.length];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) argb[i]; // extracted blue component. Every component is the same because the picture is in greyscale.
+        }
+        return new Image(pixels, 0, image.getHeight(), image.getWidth(), label);
+    }
+
     /**
      * Creates a double matrix representation of the given image.
      * @param image to be read as a Matrix
@@ -177,9 +147,10 @@ public class DataReader {
 
         double[][] imageMatrix = new double[height][width];
 
+        int[] pixels = Pixels.readArgb(image, null);
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
-                int pixel = image.getRGB(x, y);
+                int pixel = pixels[y*width + x];
                 int scale = pixel & 0xff; // extracted blue component. Every component is the same because the picture is in greyscale.
                 imageMatrix[y][x] = (double) scale;
             }
@@ -195,62 +166,70 @@ public class DataReader {
      * dirFrom subdirectories and dirTo subdirectories must be called:
      * 0 1 2 3 4 5 6 7 8 9. Each subdirectory for preprocessed and processed pictures
      * of one digit.
-     * CALL ONLY IF SOME DATASET HAS BEEN MANUALLY UPDATED TO PROCESS THE NEW IMAGES.
+     * Only new and changed images are processed, the ones processed before are remembered in
+     * a manifest in dirTo (see DatasetManifest), and the processed images of deleted images are deleted.
+     * So this can be called after every update of a data set, it takes as long as the new images do.
+     * Pictures of all the subdirectories are processed together on all the cores (see ImagePipeline).
      * @param dirFrom directory containing labeled directories with images to be processed
      * @param dirTo directory containing labeled directories to save the processed images
      */
     public void processDigitsDirectory(String dirFrom, String dirTo){
-        // Loop through all subdirectories named 0-9
+        // Create the output directories if they do not exist
         for (int i = 0; i <= 9; i++) {
-            String subDirFrom = dirFrom + File.separator + i;
-            String subDirTo = dirTo + File.separator + i;
+            new File(dirTo + File.separator + i).mkdirs();
+        }
 
-            File inputDir = new File(subDirFrom);
-            File outputDir = new File(subDirTo);
+        Path from = Paths.get(dirFrom);
+        Path to = Paths.get(dirTo);
+        Path manifestFile = to.resolve(DatasetManifest.FILE_NAME);
 
-            // Create the output directory if it does not exist
-            if (!outputDir.exists()) {
-                outputDir.mkdirs();
+        try {
+            DatasetManifest manifest = DatasetManifest.read(manifestFile);
+            List<Path> sources = listSubDirectories(dirFrom, true);
+
+            Set<String> names = new HashSet<>();
+            List<Path> changed = new ArrayList<>();
+            for (Path source : sources) {
+                String name = relativeName(from, source);
+                names.add(name);
+                if (!manifest.isUpToDate(name, source, to)) {
+                    changed.add(source);
+                }
             }
+            int removed = manifest.removeMissing(names, to);
+            System.out.println(dirFrom + ": " + changed.size() + " new or changed images, "
+                    + (sources.size() - changed.size()) + " unchanged, " + removed + " removed");
 
-            // List all image files in the input directory
-            File[] imageFiles = inputDir.listFiles((dir, name) -> {
-                String lowercaseName = name.toLowerCase();
-                return lowercaseName.endsWith(".jpg") || lowercaseName.endsWith(".jpeg") || lowercaseName.endsWith(".png");
-            });
-
-            int totalImages = imageFiles.length;
-            int counter = 1;
-            ImageProcessor imageProcessor = new ImageProcessor();
-
-            if (imageFiles != null) {
-                for (File imageFile : imageFiles) {
-                    try {
-                        // Read the image
-                        BufferedImage image = ImageIO.read(imageFile);
-
-                        // Process the image using ImageProcessor
-                        BufferedImage processedImage = imageProcessor.processImage(image);
-
-                        // Save the processed image to the output directory
-                        File outputImageFile = new File(outputDir, imageFile.getName());
-                        ImageIO.write(processedImage, "png", outputImageFile);
-                        System.out.println(i + ": " + counter++  + "/" + totalImages);
-                    } catch (IOException e) {
-                        System.err.println(e.getMessage());
-                    }
-                }
+            ThreadLocal<ImageProcessor> processors = ThreadLocal.withInitial(ImageProcessor::new);    //one for every thread, they keep buffers
+            try {
+                ImagePipeline.run(changed, threads, (imageFile, modified, content, image) -> {
+                    // Process the image using ImageProcessor
+                    BufferedImage processedImage = processors.get().processImage(image);
+
+                    // Save the processed image to the labeled output directory, with the same name
+                    String name = relativeName(from, imageFile);
+                    ImageIO.write(processedImage, "png", to.resolve(name).toFile());
+                    return DatasetManifest.describe(name, modified, content, name);   //the bytes the image was decoded from
+                }, manifest::put, dirFrom);
+            } finally {
+                manifest.write(manifestFile);   //what was processed before an error does not have to be processed again
             }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
         }
     }
 
+    /*Path of the file relative to the directory, with / between the directories on every system.*/
+    private static String relativeName(Path dir, Path file) {
+        return dir.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
     /** Processes every image in the dirFrom directory using ImageProcessor, and
      * saves the processed images into the dirTo directory.
      * @param dirFrom directory containing images to process
      * @param dirTo directory to save the processed images into
      */
     public void processImagesDirectory(String dirFrom, String dirTo, boolean scaling){
-        File inputDir = new File(dirFrom);
         File outputDir = new File(dirTo);
 
         // Create the output directory if it does not exist
@@ -258,37 +237,20 @@ public class DataReader {
             outputDir.mkdirs();
         }
 
-        // List all image files in the input directory
-        File[] imageFiles = inputDir.listFiles((dir, name) -> {
-            String lowercaseName = name.toLowerCase();
-            return lowercaseName.endsWith(".jpg") || lowercaseName.endsWith(".jpeg") || lowercaseName.endsWith(".png");
-        });
-
-        ImageProcessor imageProcessor = new ImageProcessor();
-
-        if (imageFiles != null) {
-            for (File imageFile : imageFiles) {
-                try {
-                    // Read the image
-                    BufferedImage image = ImageIO.read(imageFile);
-
-                    // Process the image using ImageProcessor
-                    BufferedImage processedImage;
-                    if(scaling){
-                        processedImage = imageProcessor.processImage(image);
-                    }else{
-                        processedImage = imageProcessor.processImage_noScaling(image);
-                    }
-
-                    // Save the processed image to the output directory
-                    File outputImageFile = new File(outputDir, imageFile.getName());
-                    ImageIO.write(processedImage, "png", outputImageFile);
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
-                }
+        ThreadLocal<ImageProcessor> processors = ThreadLocal.withInitial(ImageProcessor::new);
+        ImagePipeline.run(listFiles(Paths.get(dirFrom), true), threads, (imageFile, image) -> {
+            // Process the image using ImageProcessor
+            BufferedImage processedImage;
+            if(scaling){
+                processedImage = processors.get().processImage(image);
+            }else{
+                processedImage = processors.get().processImage_noScaling(image);
             }
-        }
 
+            // Save the processed image to the output directory
+            ImageIO.write(processedImage, "png", new File(outputDir, imageFile.getFileName().toString()));
+            return null;
+        }, result -> {}, dirFrom);
     }
 
     /** Processes the input JMBAG image. After this method, the image is ready
@@ -308,5 +270,36 @@ public class DataReader {
             e.printStackTrace();
         }
     }
-}
 
+    /**
+     * Lists the files in the directory, it is not an error if the directory does not exist.
+     * @param imagesOnly if only .jpg, .jpeg and .png files are listed
+     */
+    private static List<Path> listFiles(Path dir, boolean imagesOnly) {
+        List<Path> files = new ArrayList<>();
+        if(!Files.isDirectory(dir)){
+            return files;
+        }
+
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+            for(Path file : stream){
+                String lowercaseName = file.getFileName().toString().toLowerCase();
+                if(!imagesOnly || lowercaseName.endsWith(".jpg") || lowercaseName.endsWith(".jpeg") || lowercaseName.endsWith(".png")){
+                    files.add(file);
+                }
+            }
+        }catch(IOException e){
+            System.err.println(e.getMessage());
+        }
+        return files;
+    }
+
+    /*Files of all the subdirectories 0-9, subdirectory after subdirectory.*/
+    private static List<Path> listSubDirectories(String dirPath, boolean imagesOnly) {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i <= 9; i++) {
+            files.addAll(listFiles(Paths.get(dirPath, String.valueOf(i)), imagesOnly));
+        }
+        return files;
+    }
+}
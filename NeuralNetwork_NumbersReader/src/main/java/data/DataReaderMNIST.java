@@ -1,50 +1,217 @@
 package data;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads MNIST from a CSV file, one image on every line: the label and then 784 pixels (0 - 255),
+ * row by row, separated by commas. The file is read in big blocks of bytes and the numbers are
+ * made straight from the digits, no String is made for a line or a number.
+ */
 public class DataReaderMNIST {
 
     private final int rows = 28;
     private final int cols = 28;
 
+    /**
+     * Reads all the images into a list, every image with its own bytes.
+     * readStore keeps them all in one array instead.
+     */
     public List<Image> readData(String path){
 
         List<Image> images = new ArrayList<>();
 
-        try (BufferedReader dataReader = new BufferedReader(new FileReader(path))){
-
-            String line;
+        try (Parser parser = new Parser(path)){
+            byte[] pixels = new byte[rows*cols];
+            int label;
+            while((label = parser.next(pixels, 0)) >= 0){
+                images.add(toImage(pixels, label));
+            }
+        } catch (IOException e){
+            e.printStackTrace();
+            throw new IllegalArgumentException("File not found " + path);
+        }
 
-            while((line = dataReader.readLine()) != null){
-                String[] lineItems = line.split(",");
-                /*this was added because some train.csv lines were somehow wrong...*/
-                if(lineItems.length < 785) continue;
-                double[][] data = new double[rows][cols];
-                int label = Integer.parseInt(lineItems[0]);
+        return images;
 
-                int i = 1;
+    }
 
-                for(int row = 0; row < rows; row++){
-                    for(int col = 0; col < cols; col++){
-                        data[row][col] = (double) Integer.parseInt(lineItems[i]);
-                        i++;
-                    }
-                }
+    /**
+     * Reads all the images into one ImageStore, one byte for every pixel.
+     */
+    public ImageStore readStore(String path){
 
-                images.add(new Image(data, label));
+        ImageStore store = new ImageStore(rows, cols);
 
+        try (Parser parser = new Parser(path)){
+            while(true){
+                int offset = store.reserve();   //can move the pixels into a bigger array, so it goes first
+                int label = parser.next(store.pixels(), offset);
+                if(label < 0) break;
+                store.add(label);
             }
-
-        } catch (Exception e){
+        } catch (IOException e){
             e.printStackTrace();
             throw new IllegalArgumentException("File not found " + path);
         }
 
-        return images;
+        return store;
+    }
+
+    /**
+     * Reads the images one by one while the stream is used, so training can start on the first
+     * images before the rest of the file is read, and only the images in use are in memory.
+     * The stream must be closed to close the file (try-with-resources).
+     */
+    public Stream<Image> streamData(String path){
+        Parser parser;
+        try {
+            parser = new Parser(path);
+        } catch (IOException e){
+            throw new IllegalArgumentException("File not found " + path, e);
+        }
 
+        Iterator<Image> images = new Iterator<>() {
+            private final byte[] _pixels = new byte[rows*cols];
+            private int _label = -2;    //-2 when the next line was not read yet, -1 at the end
+
+            @Override
+            public boolean hasNext() {
+                if(_label == -2){
+                    try {
+                        _label = parser.next(_pixels, 0);
+                    } catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return _label >= 0;
+            }
+
+            @Override
+            public Image next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                Image image = toImage(_pixels, _label);
+                _label = -2;
+                return image;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(images, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(parser::close);
     }
 
-}
\ No newline at end of file
+    private Image toImage(byte[] pixels, int label) {
+        return new Image(pixels.clone(), 0, rows, cols, label);
+    }
+
+    /*Reads the file one block at a time and turns the digits into numbers as they come.*/
+    private final class Parser implements Closeable {
+
+        private final String _path;
+        private final FileChannel _channel;
+        private final byte[] _bytes = new byte[1 << 16];
+        private final ByteBuffer _buffer = ByteBuffer.wrap(_bytes);
+        private int _position = 0;
+        private int _end = 0;
+        private int _line = 0;
+
+        Parser(String path) throws IOException {
+            this._path = path;
+            this._channel = FileChannel.open(Path.of(path));
+        }
+
+        /**
+         * Reads the next line with a label and all the pixels, the pixels are written as bytes into
+         * pixels from offset on. Lines with less than 785 numbers are skipped, some train.csv lines
+         * were somehow wrong. So is the first line if it is not made of numbers (a header).
+         * Numbers after the 785th are ignored.
+         * @return label of the image, or -1 at the end of the file
+         */
+        int next(byte[] pixels, int offset) throws IOException {
+            int fields = 1 + rows*cols;
+
+            while(true){
+                _line++;
+                int count = 0;
+                int value = 0;
+                boolean inNumber = false;
+                boolean wrong = false;
+                int label = 0;
+
+                int b;
+                while((b = read()) >= 0 && b != '\n'){
+                    if(b >= '0' && b <= '9'){
+                        value = value*10 + (b - '0');
+                        inNumber = true;
+                        wrong |= value > 255;
+                    } else if(b == ','){
+                        wrong |= !inNumber;
+                        if(count == 0) label = value;
+                        else if(count < fields) pixels[offset + count - 1] = (byte) value;
+                        count++;
+                        value = 0;
+                        inNumber = false;
+                    } else if(b != '\r' && b != ' '){
+                        wrong = true;
+                    }
+                }
+                if(inNumber){   //the last number has no comma after it
+                    if(count == 0) label = value;
+                    else if(count < fields) pixels[offset + count - 1] = (byte) value;
+                    count++;
+                }
+
+                if(b < 0 && count == 0 && !wrong){
+                    return -1;
+                }
+                if(wrong){
+                    if(_line == 1) continue;
+                    throw new IllegalArgumentException("Line " + _line + " of " + _path + " is not a list of numbers from 0 to 255");
+                }
+                if(count < fields){
+                    continue;
+                }
+                return label;
+            }
+        }
+
+        private int read() throws IOException {
+            if(_position == _end){
+                _buffer.clear();
+                int read;
+                do {
+                    read = _channel.read(_buffer);
+                } while(read == 0);
+                if(read < 0){
+                    return -1;
+                }
+                _position = 0;
+                _end = read;
+            }
+            return _bytes[_position++] & 0xFF;
+        }
+
+        @Override
+        public void close() {
+            try {
+                _channel.close();
+            } catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Remembers which source pictures were processed into which output pictures, so
+ * DataReader.processDigitsDirectory only processes the pictures that are new or changed.
+ * For every source it keeps its size, time of the last change and SHA-256 of the content.
+ * A source with the same size and time is not even read. One whose time changed but whose content
+ * did not (copied again, touched) is only read to compare the hash.
+ * The manifest is a text file in the output directory, one source on every line:
+ * source, size, time in milliseconds, hash and output, separated by tabs. Paths are relative,
+ * with / between the directories. Delete the file to process everything again.
+ */
+final class DatasetManifest {
+
+    static final String FILE_NAME = "manifest.tsv";
+    private static final String HEADER = "#source\tsize\tmodified\tsha256\toutput";
+
+    /**
+     * One processed source picture.
+     * @param source path of the source, relative to the source directory
+     * @param size size of the source in bytes
+     * @param modified time of the last change of the source, in milliseconds
+     * @param hash SHA-256 of the content of the source, in hex
+     * @param output path of the processed picture, relative to the output directory
+     */
+    record Entry(String source, long size, long modified, String hash, String output) {}
+
+    private final Map<String, Entry> _entries = new TreeMap<>();
+
+    /**
+     * Reads the manifest, or makes an empty one if there is no file yet.
+     */
+    static DatasetManifest read(Path file) throws IOException {
+        DatasetManifest manifest = new DatasetManifest();
+        if(!Files.exists(file)){
+            return manifest;
+        }
+
+        for(String line: Files.readAllLines(file, StandardCharsets.UTF_8)){
+            if(line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+            String[] items = line.split("\t");
+            if(items.length != 5){
+                throw new IOException("Wrong line in " + file + ": " + line);
+            }
+            manifest.put(new Entry(items[0], Long.parseLong(items[1]), Long.parseLong(items[2]), items[3], items[4]));
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest into a new file first and then moves it over the old one,
+     * so a run that stops halfway leaves the old manifest as it was.
+     */
+    void write(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        for(Entry entry: _entries.values()){
+            lines.add(entry.source() + "\t" + entry.size() + "\t" + entry.modified() + "\t" + entry.hash() + "\t" + entry.output());
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, lines, StandardCharsets.UTF_8);
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e){
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    void put(Entry entry) {
+        _entries.put(entry.source(), entry);
+    }
+
+    /**
+     * Checks if the source was processed into the output the way it is now. When only the time of the
+     * source changed, the entry gets the new time.
+     * @param source relative path of the source, as in the entries
+     * @param sourceFile the source picture
+     * @param outputDir output directory the outputs are relative to
+     */
+    boolean isUpToDate(String source, Path sourceFile, Path outputDir) throws IOException {
+        Entry entry = _entries.get(source);
+        if(entry == null || !Files.exists(outputDir.resolve(entry.output()))){
+            return false;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(sourceFile, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        if(attributes.size() != entry.size()){
+            return false;
+        }
+        if(modified == entry.modified()){
+            return true;
+        }
+        if(!hash(sourceFile).equals(entry.hash())){
+            return false;
+        }
+        put(new Entry(source, entry.size(), modified, entry.hash(), entry.output()));
+        return true;
+    }
+
+    /**
+     * Deletes the outputs of the sources that are gone and forgets them.
+     * @param sources relative paths of all the sources there are now
+     * @param outputDir output directory the outputs are relative to
+     * @return number of deleted outputs
+     */
+    int removeMissing(Set<String> sources, Path outputDir) throws IOException {
+        int removed = 0;
+        for(Iterator<Entry> entries = _entries.values().iterator(); entries.hasNext();){
+            Entry entry = entries.next();
+            if(!sources.contains(entry.source())){
+                if(Files.deleteIfExists(outputDir.resolve(entry.output()))){
+                    removed++;
+                }
+                entries.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Makes the entry for a source that is being processed now, from the same bytes its output is made of.
+     * The time is read before the content, so if the source changes meanwhile, the next run sees a newer
+     * time, finds a different hash and processes it again.
+     * @param modified time of the last change of the source in milliseconds, read before the content
+     * @param content content of the source the output was made of
+     */
+    static Entry describe(String source, long modified, byte[] content, String output) {
+        MessageDigest digest = sha256();
+        digest.update(content);
+        return new Entry(source, content.length, modified, HexFormat.of().formatHex(digest.digest()), output);
+    }
+
+    /**
+     * @return SHA-256 of the content of the file, in hex
+     */
+    static String hash(Path file) throws IOException {
+        try(InputStream in = Files.newInputStream(file)){
+            MessageDigest digest = sha256();
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while((read = in.read(buffer)) > 0){
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException("Every Java has SHA-256", e);
+        }
+    }
+}
@@ -4,16 +4,60 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 public class DigitsExtractor {
 
     private final int MIN_BOX_SIZE;
     private final int MAX_BOX_SIZE;
+    private final double MIN_BOX_FRACTION;     //0 if the sizes are given in pixels
+    private final double MAX_BOX_FRACTION;
+    private int _proxySize = 0;                 //0 searches the picture itself
 
+    /**
+     * @param MIN_BOX_SIZE smallest width and height of a digit, in pixels
+     * @param MAX_BOX_SIZE biggest width and height of a digit, in pixels
+     */
     public DigitsExtractor(int MIN_BOX_SIZE, int MAX_BOX_SIZE) {
+        this(MIN_BOX_SIZE, MAX_BOX_SIZE, 0, 0);
+    }
+
+    private DigitsExtractor(int MIN_BOX_SIZE, int MAX_BOX_SIZE, double MIN_BOX_FRACTION, double MAX_BOX_FRACTION) {
         this.MIN_BOX_SIZE = MIN_BOX_SIZE;
         this.MAX_BOX_SIZE = MAX_BOX_SIZE;
+        this.MIN_BOX_FRACTION = MIN_BOX_FRACTION;
+        this.MAX_BOX_FRACTION = MAX_BOX_FRACTION;
+    }
+
+    /**
+     * Makes an extractor whose digit sizes grow with the picture, so the same extractor works
+     * for a phone photo and for a small scan.
+     * @param minBoxFraction smallest width and height of a digit, as a part of the longer side of the picture
+     * @param maxBoxFraction biggest width and height of a digit, as a part of the longer side of the picture
+     */
+    public static DigitsExtractor relative(double minBoxFraction, double maxBoxFraction) {
+        if(!(minBoxFraction > 0 && minBoxFraction <= maxBoxFraction && maxBoxFraction <= 1)){
+            throw new IllegalArgumentException("Box sizes must be 0 < min <= max <= 1, were " + minBoxFraction + " and " + maxBoxFraction);
+        }
+        return new DigitsExtractor(0, 0, minBoxFraction, maxBoxFraction);
+    }
+
+    /**
+     * Makes the digits be searched for in a smaller copy of the picture (see BinaryImage.downscale),
+     * halved as many times as needed for its longer side to be at most proxySize. The boxes found
+     * there are scaled back and fitted to the pixels of the picture itself, so the digits are still
+     * cut from the full resolution. Searching is then mostly one pass over the picture to make the copy.
+     * Digits closer to each other than the halving factor are found as one box.
+     * @param proxySize longest side of the copy, 0 to search the picture itself
+     */
+    public void setProxySize(int proxySize) {
+        if(proxySize < 0){
+            throw new IllegalArgumentException("Proxy size cannot be negative, was " + proxySize);
+        }
+        this._proxySize = proxySize;
     }
 
     public void extractDigitsFromImageFile(String pathBinarizedImageIn, String pathDirOut){
@@ -47,10 +91,20 @@ public class DigitsExtractor {
     /**
      * Extracts individual digits from a given image.
      *
-     * @param image The image from which to extract digits.
+     * @param image The binarized image from which to extract digits, see BinaryImage.of.
      * @return A list of BufferedImage objects, each representing an individual digit.
      */
     public List<BufferedImage> extractDigits(BufferedImage image) {
+        return extractDigits(BinaryImage.of(image));
+    }
+
+    /**
+     * Extracts individual digits from a given binary image.
+     *
+     * @param image The image from which to extract digits.
+     * @return A list of new BufferedImage objects, each representing an individual digit, from left to right.
+     */
+    public List<BufferedImage> extractDigits(BinaryImage image) {
         List<int[]> boundingBoxes = getBoundingBoxes(image);
         List<BufferedImage> digitImages = new ArrayList<>();
         for (int[] box : boundingBoxes) {
@@ -59,7 +113,7 @@ public class DigitsExtractor {
             int width = box[2] - box[0] - 1;
             int height = box[3] - box[1] - 1;
             if (width > 0 && height > 0) {
-                BufferedImage digitImage = image.getSubimage(x, y, width, height);
+                BufferedImage digitImage = image.crop(x, y, width, height);
                 digitImages.add(digitImage);
             }
         }
@@ -74,27 +128,32 @@ public class DigitsExtractor {
      * @param binaryImage The binary image to extract bounding boxes from.
      * @return A list of bounding boxes, where each box is represented as an array of four integers: [x-start, y-start, x-end, y-end].
      */
-    private List<int[]> getBoundingBoxes(BufferedImage binaryImage) {
+    private List<int[]> getBoundingBoxes(BinaryImage binaryImage) {
         List<int[]> boundingBoxes = new ArrayList<>();
 
-        boolean[][] visited = new boolean[binaryImage.getHeight()][binaryImage.getWidth()];
+        int longer = Math.max(binaryImage.getWidth(), binaryImage.getHeight());
+        int minSize = MIN_BOX_FRACTION > 0 ? (int) Math.round(MIN_BOX_FRACTION*longer) : MIN_BOX_SIZE;
+        int maxSize = MAX_BOX_FRACTION > 0 ? (int) Math.round(MAX_BOX_FRACTION*longer) : MAX_BOX_SIZE;
 
-        for(int y=0; y<binaryImage.getHeight(); y++) {
-            for(int x=0; x<binaryImage.getWidth(); x++) {
-                // If the pixel is not visited and is black
-                if(!visited[y][x] && (binaryImage.getRGB(x, y) & 0xFF) == 255) {
-                    // Initialize a new bounding box with the current pixel's coordinates
-                    int[] box = new int[] {x, y, x, y};
+        int shift = 0;
+        while(_proxySize > 0 && (longer - 1 >> shift) + 1 > _proxySize) shift++;
+        BinaryImage searched = shift == 0 ? binaryImage : binaryImage.downscale(shift);
 
-                    // Find the bounding box for the current black region
-                    findBoundingBoxStack(binaryImage, visited, x, y, box);
-
-                    // Check if the bounding box is larger than the minimum required size
-                    if ((box[2] - box[0]) >= MIN_BOX_SIZE && (box[3] - box[1]) >= MIN_BOX_SIZE
-                        && (box[2] - box[0]) <= MAX_BOX_SIZE && (box[3] - box[1]) <= MAX_BOX_SIZE) {
-                        boundingBoxes.add(box);
-                    }
+        for(var component: findComponents(searched)) {
+            int[] box = {component.minX(), component.minY(), component.maxX(), component.maxY()};
+            if(shift > 0) {
+                //the box in the picture can only be smaller than the scaled box, skip the small ones before fitting
+                if((box[2] - box[0] + 1 << shift) - 1 < minSize || (box[3] - box[1] + 1 << shift) - 1 < minSize) {
+                    continue;
                 }
+                box = fitBox(binaryImage, box, shift);
+            }
+            int width = box[2] - box[0];
+            int height = box[3] - box[1];
+
+            // Check if the bounding box is larger than the minimum required size
+            if (width >= minSize && height >= minSize && width <= maxSize && height <= maxSize) {
+                boundingBoxes.add(box);
             }
         }
 
@@ -104,70 +163,198 @@ public class DigitsExtractor {
         return boundingBoxes;
     }
 
-    /** Iteratively finds the bounds of the black pixels surrounding box around the given x, y coordinates.
-     * @param binaryImage the image to search the box around the given x, y coordinates
-     * @param visited helper array that contains info about the already visited pixels
-     * @param x starting x position
-     * @param y starting y position
-     * @param box [x-start, y-start, x-end, y-end] representation of the bounding box, rectangle.
+    /**
+     * Scales a box found in the smaller copy back to the picture and moves its edges in to the set pixels.
+     * Every edge of the box in the copy has a set pixel, so the edge in the picture is somewhere inside
+     * the 2^shift pixels it was scaled to, and only those strips along the edges are searched.
+     * @return [x-start, y-start, x-end, y-end] in the picture
      */
-    private void findBoundingBox(BufferedImage binaryImage, boolean[][] visited, int x, int y, int[] box) {
-        /*If reached a white pixel or went out of the picture, the expanding of the bounding box is over.*/
-        if(x < 0 || y < 0 || x >= binaryImage.getWidth() || y >= binaryImage.getHeight() || visited[y][x] || (binaryImage.getRGB(x, y) & 0xFF) != 0) {
-            return;
-        }
+    private static int[] fitBox(BinaryImage image, int[] box, int shift) {
+        int width = image.getWidth();
+        byte[] pixels = image.pixels();
+        int minX = box[0] << shift;
+        int minY = box[1] << shift;
+        int maxX = Math.min((box[2] + 1 << shift) - 1, width - 1);
+        int maxY = Math.min((box[3] + 1 << shift) - 1, image.getHeight() - 1);
 
-        visited[y][x] = true;
+        while(!rowSet(pixels, width, minY, minX, maxX)) minY++;
+        while(!rowSet(pixels, width, maxY, minX, maxX)) maxY--;
+        while(!columnSet(pixels, width, minX, minY, maxY)) minX++;
+        while(!columnSet(pixels, width, maxX, minY, maxY)) maxX--;
+        return new int[] {minX, minY, maxX, maxY};
+    }
 
-        box[0] = Math.min(box[0], x);
-        box[1] = Math.min(box[1], y);
-        box[2] = Math.max(box[2], x);
-        box[3] = Math.max(box[3], y);
+    private static boolean rowSet(byte[] pixels, int width, int y, int minX, int maxX) {
+        for(int i = y*width + minX; i <= y*width + maxX; i++) {
+            if(pixels[i] != 0) return true;
+        }
+        return false;
+    }
 
-        findBoundingBox(binaryImage, visited, x - 1, y, box);
-        findBoundingBox(binaryImage, visited, x + 1, y, box);
-        findBoundingBox(binaryImage, visited, x, y - 1, box);
-        findBoundingBox(binaryImage, visited, x, y + 1, box);
+    private static boolean columnSet(byte[] pixels, int width, int x, int minY, int maxY) {
+        for(int i = minY*width + x; i <= maxY*width + x; i += width) {
+            if(pixels[i] != 0) return true;
+        }
+        return false;
     }
 
+    /**
+     * One group of set pixels that touch each other on the left, right, top or bottom side
+     * (a digit, a part of one, or a speck of dirt).
+     * @param minX x of the leftmost pixel
+     * @param minY y of the topmost pixel
+     * @param maxX x of the rightmost pixel
+     * @param maxY y of the bottommost pixel
+     * @param pixels number of pixels in the group
+     * @param centroidX average x of the pixels
+     * @param centroidY average y of the pixels
+     */
+    public record Component(int minX, int minY, int maxX, int maxY, int pixels, double centroidX, double centroidY) {}
 
-    /** Iteratively finds the bounds of the black pixels surrounding box around the given x, y coordinates.
-     * Using Stack to prevent the StackOverflowException from being thrown because of the large images.
-     * @param binaryImage the image to search the box around the given x, y coordinates
-     * @param visited helper array that contains info about the already visited pixels
-     * @param startX starting x position
-     * @param startY starting y position
-     * @param box [x-start, y-start, x-end, y-end] representation of the bounding box, rectangle.
+    /*Buffers of findComponents, kept and grown for the next pictures, so one DigitsExtractor
+    * should not be used by more than one thread at the same time.*/
+    private int[] _parent = new int[0];     //union-find parent of every label
+    private int[] _minX = new int[0], _minY = new int[0], _maxX = new int[0], _maxY = new int[0], _count = new int[0];
+    private long[] _sumX = new long[0], _sumY = new long[0];
+    private int[] _runStart = new int[0], _runEnd = new int[0], _runLabel = new int[0];     //runs of the current row
+    private int[] _prevStart = new int[0], _prevEnd = new int[0], _prevLabel = new int[0];  //runs of the row above
+
+    /**
+     * Finds all the groups of set pixels in the image in one pass over the rows.
+     * Every row is split into runs of set pixels. A run gets the label of the runs above it it touches,
+     * labels of different runs above are joined (union-find), and a run that touches nothing gets a new
+     * label. The box, count and sums of the run are added to its label right away, and at the end the
+     * joined labels are added into their roots. Nothing is allocated for single pixels, and the time
+     * is linear in the number of pixels.
+     * @param image image to search
+     * @return groups in the order of their first pixel, row by row
      */
-    private  void findBoundingBoxStack(BufferedImage binaryImage, boolean[][] visited, int startX, int startY, int[] box) {
-        int width = binaryImage.getWidth();
-        int height = binaryImage.getHeight();
+    public List<Component> findComponents(BinaryImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] pixels = image.pixels();
+
+        if(_runStart.length < width/2 + 1){
+            int runs = width/2 + 1;     //most runs a row can have, they are separated by at least one pixel
+            _runStart = new int[runs]; _runEnd = new int[runs]; _runLabel = new int[runs];
+            _prevStart = new int[runs]; _prevEnd = new int[runs]; _prevLabel = new int[runs];
+        }
 
-        Stack<int[]> stack = new Stack<>();
-        stack.push(new int[]{startX, startY});
+        int labels = 0;
+        int prevRuns = 0;
+        for(int y = 0; y < height; y++) {
+            int row = y*width;
+            int runs = 0;
+            int above = 0;      //first run above that can still touch a run of this row
 
-        while (!stack.isEmpty()) {
-            int[] pos = stack.pop();
-            int x = pos[0];
-            int y = pos[1];
+            int x = 0;
+            while(x < width) {
+                if(pixels[row + x] == 0) {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while(x < width && pixels[row + x] != 0) x++;
+                int end = x - 1;
 
-            if (x < 0 || y < 0 || x >= width || y >= height || visited[y][x] || (binaryImage.getRGB(x, y) & 0xFF) == 0) {
-                continue;
+                while(above < prevRuns && _prevEnd[above] < start) above++;
+                int label = -1;
+                for(int r = above; r < prevRuns && _prevStart[r] <= end; r++) {
+                    label = label < 0 ? find(_prevLabel[r]) : union(label, _prevLabel[r]);
+                }
+                if(label < 0) {
+                    label = newLabel(labels++, start, y);
+                }
+
+                _runStart[runs] = start;
+                _runEnd[runs] = end;
+                _runLabel[runs] = label;
+                runs++;
+
+                int length = end - start + 1;
+                _minX[label] = Math.min(_minX[label], start);
+                _maxX[label] = Math.max(_maxX[label], end);
+                _maxY[label] = y;
+                _count[label] += length;
+                _sumX[label] += (long) (start + end)*length/2;
+                _sumY[label] += (long) y*length;
             }
 
-            visited[y][x] = true;
+            //this row becomes the row above
+            int[] swap = _prevStart; _prevStart = _runStart; _runStart = swap;
+            swap = _prevEnd; _prevEnd = _runEnd; _runEnd = swap;
+            swap = _prevLabel; _prevLabel = _runLabel; _runLabel = swap;
+            prevRuns = runs;
+        }
 
-            // Update the bounding box
-            box[0] = Math.min(box[0], x);
-            box[1] = Math.min(box[1], y);
-            box[2] = Math.max(box[2], x);
-            box[3] = Math.max(box[3], y);
+        /*The root of a group is always its smallest label, which is the label of its first pixel,
+        * so adding the labels up in order always adds into a root, and the roots come in the
+        * order of the first pixels.*/
+        List<Component> components = new ArrayList<>();
+        for(int label = 0; label < labels; label++) {
+            int root = find(label);
+            if(root != label) {
+                _minX[root] = Math.min(_minX[root], _minX[label]);
+                _minY[root] = Math.min(_minY[root], _minY[label]);
+                _maxX[root] = Math.max(_maxX[root], _maxX[label]);
+                _maxY[root] = Math.max(_maxY[root], _maxY[label]);
+                _count[root] += _count[label];
+                _sumX[root] += _sumX[label];
+                _sumY[root] += _sumY[label];
+            }
+        }
+        for(int label = 0; label < labels; label++) {
+            if(_parent[label] == label) {
+                components.add(new Component(_minX[label], _minY[label], _maxX[label], _maxY[label], _count[label],
+                        (double) _sumX[label]/_count[label], (double) _sumY[label]/_count[label]));
+            }
+        }
+        return components;
+    }
 
-            // Push neighboring pixels onto the stack
-            stack.push(new int[]{x - 1, y});
-            stack.push(new int[]{x + 1, y});
-            stack.push(new int[]{x, y - 1});
-            stack.push(new int[]{x, y + 1});
+    private int newLabel(int label, int x, int y) {
+        if(label == _parent.length) {
+            int size = Math.max(64, label*2);
+            _parent = Arrays.copyOf(_parent, size);
+            _minX = Arrays.copyOf(_minX, size);
+            _minY = Arrays.copyOf(_minY, size);
+            _maxX = Arrays.copyOf(_maxX, size);
+            _maxY = Arrays.copyOf(_maxY, size);
+            _count = Arrays.copyOf(_count, size);
+            _sumX = Arrays.copyOf(_sumX, size);
+            _sumY = Arrays.copyOf(_sumY, size);
+        }
+        _parent[label] = label;
+        _minX[label] = x;
+        _minY[label] = y;
+        _maxX[label] = x;
+        _maxY[label] = y;
+        _count[label] = 0;
+        _sumX[label] = 0;
+        _sumY[label] = 0;
+        return label;
+    }
+
+    private int find(int label) {
+        while(_parent[label] != label) {
+            _parent[label] = _parent[_parent[label]];   //halves the path for the next time
+            label = _parent[label];
+        }
+        return label;
+    }
+
+    /**
+     * Joins the groups of the two labels, the smaller root becomes the root of both.
+     * @return the root of the joined group
+     */
+    private int union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if(rootA < rootB) {
+            _parent[rootB] = rootA;
+            return rootA;
         }
+        _parent[rootA] = rootB;
+        return rootB;
     }
 }
@@ -0,0 +1,148 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes an ImageStore in the IDX format the original MNIST files come in, so a data set
+ * is parsed or decoded only once and every training after that starts by reading two files.
+ * The images go into one file: magic number 0x00000803 (unsigned bytes, 3 dimensions), the number of
+ * images, rows and columns as big endian ints, and then one byte for every pixel, image after image,
+ * row by row. The labels go into another: 0x00000801, the number of labels, and one byte for every label.
+ * Files like train-images-idx3-ubyte and train-labels-idx1-ubyte from the MNIST site are read as they are.
+ */
+public final class IdxFile {
+
+    private static final int IMAGES_MAGIC = 0x00000803;
+    private static final int LABELS_MAGIC = 0x00000801;
+
+    private IdxFile() {
+    }
+
+    /**
+     * @return path of the images file of the data set, prefix-images-idx3-ubyte
+     */
+    public static Path imagesPath(String prefix) {
+        return Path.of(prefix + "-images-idx3-ubyte");
+    }
+
+    /**
+     * @return path of the labels file of the data set, prefix-labels-idx1-ubyte
+     */
+    public static Path labelsPath(String prefix) {
+        return Path.of(prefix + "-labels-idx1-ubyte");
+    }
+
+    /**
+     * Reads the data set written with write(store, prefix).
+     */
+    public static ImageStore read(String prefix) throws IOException {
+        return read(imagesPath(prefix), labelsPath(prefix));
+    }
+
+    /**
+     * Reads the images and their labels. The bytes are read straight into the arrays of the store,
+     * nothing is parsed. The files are not memory-mapped, so nothing keeps them open after read returns
+     * and they can be written again right away (on Windows a mapped file cannot be).
+     * @param images IDX file with the images
+     * @param labels IDX file with the labels, as many as there are images
+     * @return store with all the images
+     */
+    public static ImageStore read(Path images, Path labels) throws IOException {
+        try(FileChannel imagesChannel = FileChannel.open(images); FileChannel labelsChannel = FileChannel.open(labels)){
+            ByteBuffer imagesHeader = readFully(imagesChannel, ByteBuffer.allocate(16)).flip();
+            ByteBuffer labelsHeader = readFully(labelsChannel, ByteBuffer.allocate(8)).flip();
+
+            int count = header(imagesHeader, IMAGES_MAGIC, images, 3);
+            int rows = imagesHeader.getInt();
+            int cols = imagesHeader.getInt();
+            int labelCount = header(labelsHeader, LABELS_MAGIC, labels, 1);
+            if(count != labelCount){
+                throw new IllegalArgumentException(images + " has " + count + " images, but " + labels + " has " + labelCount + " labels");
+            }
+            if(rows < 1 || cols < 1){
+                throw new IllegalArgumentException(images + " has images of " + rows + "x" + cols + " pixels");
+            }
+            if((long) count*rows*cols > Integer.MAX_VALUE - 8){
+                throw new IllegalArgumentException(images + " has too many pixels for one array");
+            }
+
+            byte[] pixels = new byte[count*rows*cols];
+            byte[] labelBytes = new byte[count];
+            if(readFully(imagesChannel, ByteBuffer.wrap(pixels)).hasRemaining()
+                    || readFully(labelsChannel, ByteBuffer.wrap(labelBytes)).hasRemaining()){
+                throw new IllegalArgumentException(images + " or " + labels + " is shorter than its header says");
+            }
+            return new ImageStore(rows, cols, pixels, labelBytes, count);
+        }
+    }
+
+    /**
+     * Writes the data set as prefix-images-idx3-ubyte and prefix-labels-idx1-ubyte.
+     */
+    public static void write(ImageStore store, String prefix) throws IOException {
+        write(store, imagesPath(prefix), labelsPath(prefix));
+    }
+
+    /**
+     * Writes all the images of the store into one IDX file and their labels into another.
+     * Existing files are overwritten. Every file is written into a new file first and then moved over
+     * the old one, so a write that stops halfway leaves whole files. The labels are written first,
+     * so the images file is the last one to change.
+     */
+    public static void write(ImageStore store, Path images, Path labels) throws IOException {
+        int count = store.size();
+
+        ByteBuffer labelsHeader = ByteBuffer.allocate(8).putInt(LABELS_MAGIC).putInt(count).flip();
+        writeFile(labels, labelsHeader, ByteBuffer.wrap(store.labels(), 0, count));
+
+        ByteBuffer imagesHeader = ByteBuffer.allocate(16).putInt(IMAGES_MAGIC).putInt(count)
+                .putInt(store.getRows()).putInt(store.getCols()).flip();
+        writeFile(images, imagesHeader, ByteBuffer.wrap(store.pixels(), 0, count*store.getRows()*store.getCols()));
+    }
+
+    /*Checks the magic number and returns the number of items, the other dimensions are left to read.
+    * ByteBuffers are big endian, like IDX.*/
+    private static int header(ByteBuffer buffer, int magic, Path path, int dimensions) {
+        if(buffer.remaining() < 4 + 4*dimensions || buffer.getInt() != magic){
+            throw new IllegalArgumentException(path + " is not an IDX file of unsigned bytes with " + dimensions + " dimensions");
+        }
+        int count = buffer.getInt();
+        if(count < 0){
+            throw new IllegalArgumentException(path + " has a negative number of items");
+        }
+        return count;
+    }
+
+    /*Reads until the buffer is full or the file ends, a buffer with something remaining means the file was shorter.*/
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                break;
+            }
+        }
+        return buffer;
+    }
+
+    private static void writeFile(Path path, ByteBuffer... buffers) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            for(ByteBuffer buffer: buffers){
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+            }
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e){
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -1,25 +1,113 @@
 package data;
 
+/**
+ * One labeled greyscale picture for the network.
+ * The pixels are either a double[][] or, much smaller, bytes (0 - 255) somewhere inside a byte[],
+ * which can be shared with many other Images (see ImageStore). For an Image made from bytes, normalize
+ * and binarizeSimple do not change the bytes, they only change the value every byte stands for, and
+ * the values are used when the input of the network is filled (writeInput).
+ */
 public class Image {
 
-    private final double[][] data;
+    //value of every byte before normalize or binarizeSimple, the byte itself
+    private static final double[] BYTE_VALUES = new double[256];
+    static {
+        for(int v = 0; v < 256; v++) BYTE_VALUES[v] = v;
+    }
+
+    private final double[][] data;      //null if the pixels are bytes
+    private final byte[] pixels;
+    private final int offset;
+    private final int rows;
+    private final int cols;
+    private double[] values = BYTE_VALUES;
     private final int label;
 
     public Image(double[][] data, int label) {
         this.data = data;
+        this.pixels = null;
+        this.offset = 0;
+        this.rows = data.length;
+        this.cols = data[0].length;
         this.label = label;
     }
 
+    /**
+     * Makes an Image that uses the bytes as they are, they are not copied.
+     * @param pixels array with the pixels, 0 - 255 each
+     * @param offset index of the first pixel, the others follow row by row
+     * @param rows rows of the image
+     * @param cols columns of the image
+     * @param label label of the image
+     */
+    public Image(byte[] pixels, int offset, int rows, int cols, int label) {
+        if(rows < 1 || cols < 1 || offset < 0 || offset + rows*cols > pixels.length){
+            throw new IllegalArgumentException("No " + rows + "x" + cols + " image at " + offset + " in " + pixels.length + " bytes");
+        }
+        this.data = null;
+        this.pixels = pixels;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.label = label;
+    }
+
+    /**
+     * @return the pixels. For an Image made from bytes this is a new matrix every time,
+     * so changing it does not change the Image.
+     */
     public double[][] getData() {
-        return data;
+        if(data != null){
+            return data;
+        }
+        double[][] matrix = new double[rows][cols];
+        int p = offset;
+        for(int r = 0; r < rows; r++){
+            for(int c = 0; c < cols; c++){
+                matrix[r][c] = values[pixels[p++] & 0xFF];
+            }
+        }
+        return matrix;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
     }
 
     public int getLabel() {
         return label;
     }
 
+    /**
+     * Writes every pixel multiplied by scale into the input of the network, without a copy of the image.
+     * @param input Tensor of shape [1, rows, cols]
+     * @param scale number every pixel is multiplied by
+     */
+    public void writeInput(Tensor input, double scale) {
+        if(data != null){
+            for(int r = 0; r < rows; r++){
+                for(int c = 0; c < cols; c++){
+                    input.set(0, r, c, data[r][c]*scale);
+                }
+            }
+            return;
+        }
+
+        int p = offset;
+        for(int r = 0; r < rows; r++){
+            for(int c = 0; c < cols; c++){
+                input.set(0, r, c, values[pixels[p++] & 0xFF]*scale);
+            }
+        }
+    }
+
     @Override
     public String toString() {
+        double[][] data = getData();
         String s = label + ":\n";
         for(int r=0; r< data.length; r++) {
             for(int c=0; c< data[0].length; c++) {
@@ -32,6 +120,15 @@ public class Image {
     }
 
     public void normalize() {
+        if(data == null) {
+            double[] normalized = new double[256];
+            for(int v = 0; v < 256; v++) {
+                normalized[v] = values[v] == 0 ? -1 : 1;
+            }
+            values = normalized;
+            return;
+        }
+
         for(int r = 0; r < data.length; r++) {
             for(int c = 0; c < data[0].length; c++) {
                 if(data[r][c] == 0) {
@@ -44,6 +141,15 @@ public class Image {
     }
 
     public void binarizeSimple(){
+        if(data == null) {
+            double[] binarized = new double[256];
+            for(int v = 0; v < 256; v++) {
+                binarized[v] = values[v] > 100 ? 255.0 : 0.0;
+            }
+            values = binarized;
+            return;
+        }
+
         for(int r = 0; r < data.length; r++) {
             for(int c = 0; c < data[0].length; c++) {
                 if(data[r][c] > 100) {
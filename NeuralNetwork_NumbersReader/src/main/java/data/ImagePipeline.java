@@ -0,0 +1,145 @@
+package data;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Reads many pictures on all the cores. The files are listed first, then every picture is decoded and
+ * prepared (read into an Image, processed and saved...) by one of the threads of a pool, and the results
+ * go back to the calling thread through a bounded queue, in the same order as the files, so the same
+ * directory always gives the same data set. Only a few pictures per thread are decoded ahead of the
+ * calling thread, a huge directory does not fill the memory.
+ * Progress is printed for all the pictures together, at most once a second, instead of a line for every file.
+ */
+final class ImagePipeline {
+
+    private static final int AHEAD = 4;     //pictures per thread that can wait in the queue
+
+    /**
+     * What is done with every picture on the threads of the pool.
+     */
+    interface Task<T> {
+        /**
+         * @param file file of the picture
+         * @param image decoded picture
+         * @return result for the calling thread, null if there is nothing to pass on
+         */
+        T apply(Path file, BufferedImage image) throws IOException;
+    }
+
+    /**
+     * Task that also gets the file the picture was decoded from, for example to remember what was processed.
+     */
+    interface SourceTask<T> {
+        /**
+         * @param file file of the picture
+         * @param modified time of the last change of the file in milliseconds, read before the content
+         * @param content content of the file, the picture was decoded from exactly those bytes
+         * @param image decoded picture
+         * @return result for the calling thread, null if there is nothing to pass on
+         */
+        T apply(Path file, long modified, byte[] content, BufferedImage image) throws IOException;
+    }
+
+    private ImagePipeline() {
+    }
+
+    /**
+     * Decodes and prepares all the pictures and passes the results on in the order of the files.
+     * A picture that cannot be read or prepared is skipped and its error is printed, the others are still read.
+     * @param files pictures to read
+     * @param threads threads that decode and prepare the pictures
+     * @param task what is done with every picture, it can run on many threads at the same time
+     * @param results gets every result on the calling thread, in the order of the files
+     * @param name what is read, for the progress lines
+     * @return number of pictures that could not be read
+     */
+    static <T> int run(List<Path> files, int threads, Task<T> task, Consumer<? super T> results, String name) {
+        return run(files, threads, (SourceTask<T>) (file, modified, content, image) -> task.apply(file, image), results, name);
+    }
+
+    /**
+     * The same as the other run, but every file is read only once and the task also gets its content.
+     */
+    static <T> int run(List<Path> files, int threads, SourceTask<T> task, Consumer<? super T> results, String name) {
+        Progress progress = new Progress(name, files.size());
+        Queue<Future<T>> queue = new ArrayDeque<>();
+        int failed = 0;
+
+        try(ExecutorService pool = Executors.newFixedThreadPool(threads)){
+            Iterator<Path> next = files.iterator();
+            while(next.hasNext() || !queue.isEmpty()){
+                while(next.hasNext() && queue.size() < threads*AHEAD){
+                    Path file = next.next();
+                    queue.add(pool.submit(() -> {
+                        long modified = Files.getLastModifiedTime(file).toMillis();
+                        byte[] content = Files.readAllBytes(file);
+                        BufferedImage image = ImageIO.read(new ByteArrayInputStream(content));
+                        if(image == null){
+                            throw new IOException("Not a supported image: " + file);
+                        }
+                        return task.apply(file, modified, content, image);
+                    }));
+                }
+
+                try {
+                    T result = queue.remove().get();   //the oldest picture, the newer ones are decoded meanwhile
+                    if(result != null){
+                        results.accept(result);
+                    }
+                } catch (ExecutionException e){
+                    failed++;
+                    System.err.println(e.getCause());
+                }
+                progress.done();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading " + name, e);
+        }
+
+        progress.finish(failed);
+        return failed;
+    }
+
+    /*Counts the finished pictures and prints how far it got now and then, only used by the calling thread.*/
+    private static final class Progress {
+        private final String _name;
+        private final int _total;
+        private final long _start = System.nanoTime();
+        private long _lastPrint = _start;
+        private int _done = 0;
+
+        Progress(String name, int total) {
+            this._name = name;
+            this._total = total;
+        }
+
+        void done() {
+            _done++;
+            long now = System.nanoTime();
+            if(now - _lastPrint >= 1_000_000_000L && _done < _total){
+                _lastPrint = now;
+                System.out.printf("%s: %d/%d (%d%%)%n", _name, _done, _total, 100L*_done/_total);
+            }
+        }
+
+        void finish(int failed) {
+            System.out.printf("%s: %d pictures in %d ms%s%n", _name, _total, (System.nanoTime() - _start)/1_000_000,
+                    failed > 0 ? ", " + failed + " could not be read" : "");
+        }
+    }
+}
@@ -3,13 +3,59 @@ package data;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Class with set of methods used for simplifying images. Each method
  * represents one "filter" for the image.
+ * The pixels are read into a buffer that is kept and reused for the next images, so
+ * one ImageProcessor should not be used by more than one thread at the same time.
+ * An ImageProcessor made with a ForkJoinPool splits big pictures in toBinaryImage into tiles
+ * of rows and filters the tiles on the threads of the pool, so one huge picture is done by
+ * all the cores instead of one.
  */
 public class ImageProcessor {
 
+    public static final int DEFAULT_TILE_ROWS = 128;
+
+    private static final int ROWS_PER_READ = 16;    //rows of the picture read at once by toBinaryImage
+
+    private final ForkJoinPool _pool;   //null if the pictures are filtered on the calling thread
+    private final int _tileRows;
+
+    private int[] _pixels = new int[0];     //grows to the largest image processed so far
+    private byte[] _grey = new byte[0];     //pixels of the last BinaryImage, first greyscale and then binary
+    private final int[] _histogram = new int[256];
+
+    public ImageProcessor() {
+        this._pool = null;
+        this._tileRows = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Creates an ImageProcessor that filters big pictures in parallel in toBinaryImage.
+     * @param pool pool whose threads filter the tiles
+     * @param tileRows number of rows in one tile, pictures with fewer rows are filtered on the calling thread
+     */
+    public ImageProcessor(ForkJoinPool pool, int tileRows) {
+        if(tileRows < 1){
+            throw new IllegalArgumentException("Tile must have at least 1 row, was " + tileRows);
+        }
+        this._pool = pool;
+        this._tileRows = tileRows;
+    }
+
+    /**
+     * Reads all the pixels of the image into the reused buffer, row by row.
+     */
+    private int[] readPixels(BufferedImage image) {
+        _pixels = Pixels.readArgb(image, _pixels);
+        return _pixels;
+    }
 
     /**
      * Filters the given image using all the methods in this class.
@@ -28,15 +74,107 @@ public class ImageProcessor {
         return binarizedImage;
     }
 
+    /**
+     * Greyscales and binarizes the image, without scaling it. The given image is not changed.
+     * @param image to be filtered
+     * @return the binarized image, see toBinaryImage
+     */
     public BufferedImage processImage_noScaling(BufferedImage image){
+        return toBinaryImage(image).toBufferedImage();
+    }
 
-        BufferedImage greyScaledImage = greyscale(image);
+    /**
+     * Does the same as greyscale, otsuThreshold and binarize one after another, but in two passes over
+     * the pixels instead of three full passes over ARGB images, and without changing the given image.
+     * The first pass reads the picture a few rows at a time, and writes the greyscale value of every
+     * pixel into a byte and counts it into the histogram right away. The threshold is found from the
+     * histogram, and the second pass turns the bytes into 0 and 1 in place.
+     * With a pool, both passes are done tile by tile on the pool. Every tile counts its own histogram
+     * and they are added up before the threshold is found, so the result is the same as without the pool.
+     * The returned image uses a buffer of this ImageProcessor, so it is only valid until the next call.
+     * @param image to be filtered
+     * @return binarized image, pixels darker than the threshold are set
+     */
+    public BinaryImage toBinaryImage(BufferedImage image){
+        int width = image.getWidth();
+        int height = image.getHeight();
 
-        int threshold = otsuThreshold(greyScaledImage);
+        if(_grey.length < width*height){
+            _grey = new byte[width*height];
+        }
+        byte[] grey = _grey;
+        int[] histogram = _histogram;
+        Arrays.fill(histogram, 0);
+
+        if(_pool == null || height <= _tileRows){
+            _pixels = greyscaleRows(image, 0, height, grey, histogram, _pixels);
+            binarizeRows(grey, 0, width*height, otsuThreshold(histogram, width*height));
+            return new BinaryImage(width, height, grey);
+        }
 
-        BufferedImage binarizedImage = binarize(greyScaledImage, threshold);
+        int tiles = (height + _tileRows - 1) / _tileRows;
+        int[][] tileHistograms = new int[tiles][256];
 
-        return binarizedImage;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for(int t = 0; t < tiles; t++){
+            int firstRow = t*_tileRows;
+            int rows = Math.min(_tileRows, height - firstRow);
+            int[] tileHistogram = tileHistograms[t];
+            tasks.add(_pool.submit(() -> {greyscaleRows(image, firstRow, rows, grey, tileHistogram, null);}));
+        }
+        for(var task: tasks){
+            task.join();
+        }
+
+        for(var tileHistogram: tileHistograms){
+            for(int i = 0; i < 256; i++){
+                histogram[i] += tileHistogram[i];
+            }
+        }
+        int threshold = otsuThreshold(histogram, width*height);
+
+        tasks.clear();
+        for(int t = 0; t < tiles; t++){
+            int from = t*_tileRows*width;
+            int to = Math.min((t + 1)*_tileRows, height)*width;
+            tasks.add(_pool.submit(() -> {binarizeRows(grey, from, to, threshold);}));
+        }
+        for(var task: tasks){
+            task.join();
+        }
+
+        return new BinaryImage(width, height, grey);
+    }
+
+    /**
+     * Writes the greyscale values of the given rows into grey and counts them into the histogram.
+     * @param buffer array for the pixels read from the picture, can be null
+     * @return buffer, or a new array if it was too small
+     */
+    private static int[] greyscaleRows(BufferedImage image, int firstRow, int rows, byte[] grey, int[] histogram, int[] buffer){
+        int width = image.getWidth();
+
+        for(int y = firstRow; y < firstRow + rows; y += ROWS_PER_READ){
+            int readRows = Math.min(ROWS_PER_READ, firstRow + rows - y);
+            int[] pixels = buffer = Pixels.readArgbRows(image, y, readRows, buffer);
+
+            int offset = y*width;
+            for(int i = 0; i < readRows*width; i++){
+                int value = greyValue(pixels[i]);
+                grey[offset + i] = (byte) value;
+                histogram[value]++;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Turns the greyscale values from index from to index to into 1 above the threshold and 0 otherwise.
+     */
+    private static void binarizeRows(byte[] grey, int from, int to, int threshold){
+        for(int i = from; i < to; i++){
+            grey[i] = (grey[i] & 0xFF) > threshold ? (byte) 1 : (byte) 0;
+        }
     }
 
     /**
@@ -86,31 +224,38 @@ public class ImageProcessor {
         int width = image.getWidth();
         int height = image.getHeight();
 
-        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] pixels = readPixels(image);
 
-        for(int i = 0; i < pixels.length; i++){
+        for(int i = 0; i < width*height; i++){
 
             int p = pixels[i];
 
             int a = (p >> 24) & 0xFF;   //transparency is the highest 8 bits
 
-            int r = (p >> 16) & 0xFF;   //red is the next 8 bits [0, 255]
-            int g = (p >> 8) & 0xFF;
-            int b = p & 0xFF;
-
-            int avg = (r + g + b) / 3;
-            //int avg = (int)(0.299*r + 0.587*g + 0.144*b) / 3; //alternative for greyscale value
-            avg = 255 - avg;
+            int avg = greyValue(p);
             p = (a << 24) | (avg << 16) | (avg << 8) | avg; //making a new pixel with same transparency
                                                             // but every color has the same value so the pixel is in the notes of grey
             pixels[i] = p;
         }
 
-        image.setRGB(0, 0, width, height, pixels, 0, width);
+        Pixels.writeArgb(image, pixels);
 
         return image;
     }
 
+    /**
+     * Greyscale value of one ARGB pixel, inverted so the dark ink of the digits gets high values.
+     */
+    private static int greyValue(int p){
+        int r = (p >> 16) & 0xFF;   //red is the next 8 bits [0, 255]
+        int g = (p >> 8) & 0xFF;
+        int b = p & 0xFF;
+
+        int avg = (r + g + b) / 3;
+        //int avg = (int)(0.299*r + 0.587*g + 0.144*b) / 3; //alternative for greyscale value
+        return 255 - avg;
+    }
+
 
 /*    private int adjustContrastRigid(int value) {
         double scaleFactor = 1.5;
@@ -160,15 +305,22 @@ public class ImageProcessor {
         int width = image.getWidth();
         int height = image.getHeight();
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int pixel = image.getRGB(x, y);
-                int grey = pixel & 0xff;
-                histogram[grey]++;
-            }
+        int[] pixels = readPixels(image);
+        for (int i = 0; i < width*height; i++) {
+            int grey = pixels[i] & 0xff;
+            histogram[grey]++;
         }
 
-        int total = width * height;
+        return otsuThreshold(histogram, width * height);
+    }
+
+    /**
+     * Calculates the 'Otsu threshold' value from an already counted histogram of greyscale values.
+     * @param histogram number of pixels with every greyscale value
+     * @param total number of all pixels
+     * @return calculated Otsu threshold value
+     */
+    public int otsuThreshold(int[] histogram, int total) {
         float sum = 0;
 
         for(int i=0; i<256; i++) sum += i*histogram[i];
@@ -215,17 +367,16 @@ public class ImageProcessor {
 
         BufferedImage binaryImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int pixel = image.getRGB(x, y);
-                int gray = pixel & 0xFF;
-                int a = pixel >> 24 & 0xFF;
+        int[] pixels = readPixels(image);
+        for (int i = 0; i < width*height; i++) {
+            int pixel = pixels[i];
+            int gray = pixel & 0xFF;
+            int a = pixel >> 24 & 0xFF;
 
-                int binary = gray > threshold ? 255 : 0;
-                int newPixel = a << 24 | binary << 16 | binary << 8 | binary;
-                binaryImage.setRGB(x, y, newPixel);
-            }
+            int binary = gray > threshold ? 255 : 0;
+            pixels[i] = a << 24 | binary << 16 | binary << 8 | binary;
         }
+        Pixels.writeArgb(binaryImage, pixels);
 
         return binaryImage;
     }
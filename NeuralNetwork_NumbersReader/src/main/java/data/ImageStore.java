@@ -0,0 +1,189 @@
+package data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+
+/**
+ * Many labeled greyscale images of the same size kept together in one byte[], one byte (0 - 255)
+ * for every pixel and one for every label. 60 000 MNIST images take 47 MB this way instead of the
+ * 376 MB of a double[28][28] for each of them. The Images of a store are made only when asked for and
+ * use the bytes of the store, nothing is copied.
+ */
+public final class ImageStore {
+
+    private final int _rows;
+    private final int _cols;
+    private byte[] _pixels;
+    private byte[] _labels;
+    private int _size = 0;
+
+    /**
+     * @param rows rows of every image
+     * @param cols columns of every image
+     */
+    public ImageStore(int rows, int cols) {
+        if(rows < 1 || cols < 1){
+            throw new IllegalArgumentException("Images must have at least one pixel, were " + rows + "x" + cols);
+        }
+        this._rows = rows;
+        this._cols = cols;
+        this._pixels = new byte[1024*rows*cols];
+        this._labels = new byte[1024];
+    }
+
+    /**
+     * Uses the given arrays as they are, they are not copied.
+     */
+    ImageStore(int rows, int cols, byte[] pixels, byte[] labels, int size) {
+        this._rows = rows;
+        this._cols = cols;
+        this._pixels = pixels;
+        this._labels = labels;
+        this._size = size;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public int getRows() {
+        return _rows;
+    }
+
+    public int getCols() {
+        return _cols;
+    }
+
+    public int getLabel(int index) {
+        checkIndex(index);
+        return _labels[index] & 0xFF;
+    }
+
+    /**
+     * @return value of the pixel, 0 - 255
+     */
+    public int getPixel(int index, int row, int col) {
+        checkIndex(index);
+        return _pixels[index*_rows*_cols + row*_cols + col] & 0xFF;
+    }
+
+    /**
+     * Makes an Image backed by the bytes of the store. Normalizing or binarizing the Image does not
+     * change the store, but shuffling or binarizing the store changes the pixels the Image shows.
+     * @param index which image
+     * @return new Image with the pixels and the label
+     */
+    public Image getImage(int index) {
+        checkIndex(index);
+        return new Image(_pixels, index*_rows*_cols, _rows, _cols, _labels[index] & 0xFF);
+    }
+
+    /**
+     * @return list that makes the Images with getImage when they are needed, it cannot be changed
+     * (shuffle the store itself)
+     */
+    public List<Image> asList() {
+        return new ImageList();
+    }
+
+    /**
+     * Sets every pixel brighter than the threshold to 255 and all the others to 0,
+     * the same as Image.binarizeSimple does with 100.
+     */
+    public void binarize(int threshold) {
+        for(int i = 0; i < _size*_rows*_cols; i++){
+            _pixels[i] = (_pixels[i] & 0xFF) > threshold ? (byte) 255 : 0;
+        }
+    }
+
+    /**
+     * Puts the images in a random order, the same way Collections.shuffle does.
+     */
+    public void shuffle(Random random) {
+        int length = _rows*_cols;
+        byte[] swap = new byte[length];
+        for(int i = _size; i > 1; i--){
+            int a = i - 1;
+            int b = random.nextInt(i);
+            System.arraycopy(_pixels, a*length, swap, 0, length);
+            System.arraycopy(_pixels, b*length, _pixels, a*length, length);
+            System.arraycopy(swap, 0, _pixels, b*length, length);
+            byte label = _labels[a];
+            _labels[a] = _labels[b];
+            _labels[b] = label;
+        }
+    }
+
+    /**
+     * Adds a copy of the image at the end, every value rounded to a whole number from 0 to 255.
+     */
+    public void add(Image image) {
+        if(image.getRows() != _rows || image.getCols() != _cols){
+            throw new IllegalArgumentException("Image is " + image.getRows() + "x" + image.getCols() + ", the store has " + _rows + "x" + _cols);
+        }
+        double[][] data = image.getData();
+        int p = reserve();
+        for(int r = 0; r < _rows; r++){
+            for(int c = 0; c < _cols; c++){
+                _pixels[p++] = (byte) Math.clamp(Math.round(data[r][c]), 0, 255);
+            }
+        }
+        add(image.getLabel());
+    }
+
+    /**
+     * Makes room for one more image.
+     * @return index in pixels() where the pixels of the new image go, row by row
+     */
+    int reserve() {
+        int length = _rows*_cols;
+        if(_size == _labels.length){
+            int capacity = Math.max(1024, _size*2);
+            _labels = Arrays.copyOf(_labels, capacity);
+            _pixels = Arrays.copyOf(_pixels, capacity*length);
+        }
+        return _size*length;
+    }
+
+    /**
+     * Adds the image whose pixels were written after reserve.
+     */
+    void add(int label) {
+        _labels[_size++] = (byte) label;
+    }
+
+    /**
+     * @return the array with the pixels, shared with this store, it can grow into a new one with reserve
+     */
+    byte[] pixels() {
+        return _pixels;
+    }
+
+    /**
+     * @return the array with the labels, shared with this store
+     */
+    byte[] labels() {
+        return _labels;
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= _size){
+            throw new IndexOutOfBoundsException("Image " + index + " of " + _size);
+        }
+    }
+
+    private final class ImageList extends AbstractList<Image> implements RandomAccess {
+        @Override
+        public Image get(int index) {
+            return getImage(index);
+        }
+
+        @Override
+        public int size() {
+            return _size;
+        }
+    }
+}
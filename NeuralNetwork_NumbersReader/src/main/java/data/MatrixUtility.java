@@ -2,14 +2,20 @@ package data;
 
 public class MatrixUtility {
 
+    /*Loops below run on the Vector API (VectorKernels) if the JVM is started with
+    * --add-modules jdk.incubator.vector -Dnumbersreader.simd=true, otherwise the plain
+    * scalar loops are used. The check is done once, when this class is loaded.
+    * Sums of dot products are added in a different order with vectors, so they
+    * can differ from the scalar results in the last digits.*/
+    public static final boolean SIMD = Boolean.getBoolean("numbersreader.simd")
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
     public static double[][] add(double[][] a, double[][] b) {
 
         double[][] result = new double[a.length][a[0].length];
 
         for(int i = 0; i < a.length; i++){
-            for(int j = 0; j < a[0].length; j++){
-                result[i][j] = a[i][j] + b[i][j];
-            }
+            addInto(a[0].length, a[i], 0, b[i], 0, result[i], 0);
         }
 
         return result;
@@ -19,7 +25,7 @@ public class MatrixUtility {
 
         double[] result = new double[a.length];
 
-        for(int i = 0; i < a.length; i++) result[i] = a[i] + b[i];
+        addInto(a.length, a, 0, b, 0, result, 0);
 
         return result;
     }
@@ -30,9 +36,7 @@ public class MatrixUtility {
         double[][] result = new double[a.length][a[0].length];
 
         for(int i = 0; i < a.length; i++){
-            for(int j = 0; j < a[0].length; j++){
-                result[i][j] = a[i][j] * scalar;
-            }
+            scaleInto(a[0].length, scalar, a[i], 0, result[i], 0);
         }
 
         return result;
@@ -42,11 +46,324 @@ public class MatrixUtility {
 
         double[] result = new double[a.length];
 
-        for(int i = 0; i < a.length; i++) result[i] = a[i] * scalar;
+        scaleInto(a.length, scalar, a, 0, result, 0);
 
         return result;
     }
 
+    /**
+     * Adds two Tensors element by element into the third one, result = a + b, without
+     * allocating anything. result can be a or b.
+     * All Tensors must be contiguous and have the same size and precision.
+     * @param a first Tensor
+     * @param b second Tensor
+     * @param result Tensor to write the sums into
+     */
+    public static void addInto(Tensor a, Tensor b, Tensor result) {
+        checkSameLayout(a, b);
+        checkSameLayout(a, result);
+
+        if(a.precision() == Precision.DOUBLE){
+            addInto(a.size(), a.data(), a.offset(), b.data(), b.offset(), result.data(), result.offset());
+        } else {
+            addInto(a.size(), a.floatData(), a.offset(), b.floatData(), b.offset(), result.floatData(), result.offset());
+        }
+    }
+
+    /**
+     * Multiplies a Tensor by a number into another Tensor, result = scalar * a, without
+     * allocating anything. result can be a.
+     * Both Tensors must be contiguous and have the same size and precision.
+     * @param scalar number to multiply with
+     * @param a Tensor to multiply
+     * @param result Tensor to write the products into
+     */
+    public static void scaleInto(double scalar, Tensor a, Tensor result) {
+        checkSameLayout(a, result);
+
+        if(a.precision() == Precision.DOUBLE){
+            scaleInto(a.size(), scalar, a.data(), a.offset(), result.data(), result.offset());
+        } else {
+            scaleInto(a.size(), (float) scalar, a.floatData(), a.offset(), result.floatData(), result.offset());
+        }
+    }
+
+    /**
+     * result = a + b for n elements of the arrays starting at the given offsets.
+     */
+    public static void addInto(int n, double[] a, int aOffset, double[] b, int bOffset, double[] result, int resultOffset) {
+        if(SIMD){
+            VectorKernels.add(n, a, aOffset, b, bOffset, result, resultOffset);
+            return;
+        }
+        for(int i = 0; i < n; i++) result[resultOffset + i] = a[aOffset + i] + b[bOffset + i];
+    }
+
+    /**
+     * result = scalar * a for n elements of the arrays starting at the given offsets.
+     */
+    public static void scaleInto(int n, double scalar, double[] a, int aOffset, double[] result, int resultOffset) {
+        if(SIMD){
+            VectorKernels.scale(n, scalar, a, aOffset, result, resultOffset);
+            return;
+        }
+        for(int i = 0; i < n; i++) result[resultOffset + i] = a[aOffset + i] * scalar;
+    }
+
+    /**
+     * Float version of addInto.
+     */
+    public static void addInto(int n, float[] a, int aOffset, float[] b, int bOffset, float[] result, int resultOffset) {
+        if(SIMD){
+            VectorKernels.add(n, a, aOffset, b, bOffset, result, resultOffset);
+            return;
+        }
+        for(int i = 0; i < n; i++) result[resultOffset + i] = a[aOffset + i] + b[bOffset + i];
+    }
+
+    /**
+     * Float version of scaleInto.
+     */
+    public static void scaleInto(int n, float scalar, float[] a, int aOffset, float[] result, int resultOffset) {
+        if(SIMD){
+            VectorKernels.scale(n, scalar, a, aOffset, result, resultOffset);
+            return;
+        }
+        for(int i = 0; i < n; i++) result[resultOffset + i] = a[aOffset + i] * scalar;
+    }
+
+    /**
+     * y = y + alpha*x for n elements of the arrays starting at the given offsets.
+     */
+    public static void axpy(int n, double alpha, double[] x, int xOffset, double[] y, int yOffset) {
+        if(SIMD){
+            VectorKernels.axpy(n, alpha, x, xOffset, y, yOffset);
+            return;
+        }
+        for(int i = 0; i < n; i++) y[yOffset + i] += alpha * x[xOffset + i];
+    }
+
+    /**
+     * Float version of axpy.
+     */
+    public static void axpy(int n, float alpha, float[] x, int xOffset, float[] y, int yOffset) {
+        if(SIMD){
+            VectorKernels.axpy(n, alpha, x, xOffset, y, yOffset);
+            return;
+        }
+        for(int i = 0; i < n; i++) y[yOffset + i] += alpha * x[xOffset + i];
+    }
+
+    /**
+     * @return sum of x[i]*y[i] for n elements of the arrays starting at the given offsets
+     */
+    public static double dot(int n, double[] x, int xOffset, double[] y, int yOffset) {
+        if(SIMD){
+            return VectorKernels.dot(n, x, xOffset, y, yOffset);
+        }
+        double sum = 0;
+        for(int i = 0; i < n; i++) sum += x[xOffset + i] * y[yOffset + i];
+        return sum;
+    }
+
+    /**
+     * Float version of dot.
+     */
+    public static float dot(int n, float[] x, int xOffset, float[] y, int yOffset) {
+        if(SIMD){
+            return VectorKernels.dot(n, x, xOffset, y, yOffset);
+        }
+        float sum = 0;
+        for(int i = 0; i < n; i++) sum += x[xOffset + i] * y[yOffset + i];
+        return sum;
+    }
+
+    /**
+     * Adds the elements of x multiplied by alpha to the elements of y, y = y + alpha*x.
+     * Both Tensors must be contiguous and have the same size and precision.
+     * @param alpha number to multiply x with
+     * @param x Tensor to add
+     * @param y Tensor to add to, changed in place
+     */
+    public static void axpy(double alpha, Tensor x, Tensor y) {
+        checkSameLayout(x, y);
+
+        int n = x.size();
+        if(x.precision() == Precision.DOUBLE){
+            axpy(n, alpha, x.data(), x.offset(), y.data(), y.offset());
+        } else {
+            axpy(n, (float) alpha, x.floatData(), x.offset(), y.floatData(), y.offset());
+        }
+    }
+
+    /*Sizes of the blocks the matrix multiplication is split into. A block of one matrix
+    * is used many times while it is still in the cache, instead of reading the whole
+    * matrix from the memory again for every row of the result.*/
+    private static final int BLOCK_SIZE = 64;
+    private static final int BLOCK_COLS = 256;
+
+    /**
+     * Multiplies two matrices and adds the product to the third one, c = c + op(a)*op(b),
+     * where op(x) is x transposed if the matching flag is set, or x itself otherwise.
+     * All three Tensors must be contiguous matrices (rank 2) of the same precision.
+     * Elements of c are summed over the inner dimension in order, so the result is the
+     * same as with the simple triple loop (except for the transposed b with SIMD, see dot).
+     * @param a matrix of shape [m, k], or [k, m] if transposeA is set
+     * @param transposeA whether a is used transposed
+     * @param b matrix of shape [k, n], or [n, k] if transposeB is set
+     * @param transposeB whether b is used transposed
+     * @param c matrix of shape [m, n] to add the product to, changed in place
+     */
+    public static void matmul(Tensor a, boolean transposeA, Tensor b, boolean transposeB, Tensor c) {
+        if(a.rank() != 2 || b.rank() != 2 || c.rank() != 2 || !a.isContiguous() || !b.isContiguous() || !c.isContiguous()
+                || a.precision() != c.precision() || b.precision() != c.precision()){
+            throw new IllegalArgumentException(a + ", " + b + " and " + c + " must be contiguous matrices of the same precision");
+        }
+        if(transposeA && transposeB){
+            throw new IllegalArgumentException("Only one of the matrices can be transposed");
+        }
+
+        int m = transposeA ? a.dim(1) : a.dim(0);
+        int k = transposeA ? a.dim(0) : a.dim(1);
+        int n = transposeB ? b.dim(0) : b.dim(1);
+        if((transposeB ? b.dim(1) : b.dim(0)) != k || c.dim(0) != m || c.dim(1) != n){
+            throw new IllegalArgumentException("Cannot multiply " + a + (transposeA ? "^T" : "") + " and "
+                    + b + (transposeB ? "^T" : "") + " into " + c);
+        }
+
+        if(c.precision() == Precision.DOUBLE){
+            double[] as = a.data(), bs = b.data(), cs = c.data();
+            if(transposeA){
+                matmulTransposedA(as, a.offset(), bs, b.offset(), cs, c.offset(), m, k, n);
+            } else if(transposeB){
+                matmulTransposedB(as, a.offset(), bs, b.offset(), cs, c.offset(), m, k, n);
+            } else {
+                matmul(as, a.offset(), bs, b.offset(), cs, c.offset(), m, k, n);
+            }
+        } else {
+            float[] as = a.floatData(), bs = b.floatData(), cs = c.floatData();
+            if(transposeA){
+                matmulTransposedA(as, a.offset(), bs, b.offset(), cs, c.offset(), m, k, n);
+            } else if(transposeB){
+                matmulTransposedB(as, a.offset(), bs, b.offset(), cs, c.offset(), m, k, n);
+            } else {
+                matmul(as, a.offset(), bs, b.offset(), cs, c.offset(), m, k, n);
+            }
+        }
+    }
+
+    /**
+     * c[m, n] += a[m, k] * b[k, n]. The inner dimension and the columns of b are split into
+     * blocks, and every row of a goes through one block of b before the next block is read.
+     */
+    private static void matmul(double[] a, int ao, double[] b, int bo, double[] c, int co, int m, int k, int n) {
+        for(int kk = 0; kk < k; kk += BLOCK_SIZE){
+            int kEnd = Math.min(kk + BLOCK_SIZE, k);
+            for(int jj = 0; jj < n; jj += BLOCK_COLS){
+                int jEnd = Math.min(jj + BLOCK_COLS, n);
+                for(int i = 0; i < m; i++){
+                    int cRow = co + i*n;
+                    for(int p = kk; p < kEnd; p++){
+                        axpy(jEnd - jj, a[ao + i*k + p], b, bo + p*n + jj, c, cRow + jj);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * c[m, n] += a[m, k] * b[n, k]^T. Every element of c is a dot product of a row of a
+     * and a row of b, rows are taken in square blocks so a block of rows of b is reused
+     * for a whole block of rows of a.
+     */
+    private static void matmulTransposedB(double[] a, int ao, double[] b, int bo, double[] c, int co, int m, int k, int n) {
+        for(int ii = 0; ii < m; ii += BLOCK_SIZE){
+            int iEnd = Math.min(ii + BLOCK_SIZE, m);
+            for(int jj = 0; jj < n; jj += BLOCK_SIZE){
+                int jEnd = Math.min(jj + BLOCK_SIZE, n);
+                for(int i = ii; i < iEnd; i++){
+                    int aRow = ao + i*k;
+                    for(int j = jj; j < jEnd; j++){
+                        c[co + i*n + j] += dot(k, a, aRow, b, bo + j*k);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * c[m, n] += a[k, m]^T * b[k, n]. Rows of b are added to the rows of c, columns of c
+     * are split into blocks so the block of c stays in the cache for the whole inner dimension.
+     */
+    private static void matmulTransposedA(double[] a, int ao, double[] b, int bo, double[] c, int co, int m, int k, int n) {
+        for(int jj = 0; jj < n; jj += BLOCK_COLS){
+            int jEnd = Math.min(jj + BLOCK_COLS, n);
+            for(int p = 0; p < k; p++){
+                int bRow = bo + p*n;
+                for(int i = 0; i < m; i++){
+                    axpy(jEnd - jj, a[ao + p*m + i], b, bRow + jj, c, co + i*n + jj);
+                }
+            }
+        }
+    }
+
+    /**
+     * Float version of matmul.
+     */
+    private static void matmul(float[] a, int ao, float[] b, int bo, float[] c, int co, int m, int k, int n) {
+        for(int kk = 0; kk < k; kk += BLOCK_SIZE){
+            int kEnd = Math.min(kk + BLOCK_SIZE, k);
+            for(int jj = 0; jj < n; jj += BLOCK_COLS){
+                int jEnd = Math.min(jj + BLOCK_COLS, n);
+                for(int i = 0; i < m; i++){
+                    int cRow = co + i*n;
+                    for(int p = kk; p < kEnd; p++){
+                        axpy(jEnd - jj, a[ao + i*k + p], b, bo + p*n + jj, c, cRow + jj);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Float version of matmulTransposedB.
+     */
+    private static void matmulTransposedB(float[] a, int ao, float[] b, int bo, float[] c, int co, int m, int k, int n) {
+        for(int ii = 0; ii < m; ii += BLOCK_SIZE){
+            int iEnd = Math.min(ii + BLOCK_SIZE, m);
+            for(int jj = 0; jj < n; jj += BLOCK_SIZE){
+                int jEnd = Math.min(jj + BLOCK_SIZE, n);
+                for(int i = ii; i < iEnd; i++){
+                    int aRow = ao + i*k;
+                    for(int j = jj; j < jEnd; j++){
+                        c[co + i*n + j] += dot(k, a, aRow, b, bo + j*k);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Float version of matmulTransposedA.
+     */
+    private static void matmulTransposedA(float[] a, int ao, float[] b, int bo, float[] c, int co, int m, int k, int n) {
+        for(int jj = 0; jj < n; jj += BLOCK_COLS){
+            int jEnd = Math.min(jj + BLOCK_COLS, n);
+            for(int p = 0; p < k; p++){
+                int bRow = bo + p*n;
+                for(int i = 0; i < m; i++){
+                    axpy(jEnd - jj, a[ao + p*m + i], b, bRow + jj, c, co + i*n + jj);
+                }
+            }
+        }
+    }
+
+    private static void checkSameLayout(Tensor a, Tensor b) {
+        if(a.size() != b.size() || a.precision() != b.precision() || !a.isContiguous() || !b.isContiguous()){
+            throw new IllegalArgumentException(a + " and " + b + " must be contiguous and of the same size and precision");
+        }
+    }
+
     public static double[][] flipHorizontal(double[][] m){
         int rows = m.length;
         int cols = m[0].length;
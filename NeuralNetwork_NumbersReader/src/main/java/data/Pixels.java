@@ -0,0 +1,137 @@
+package data;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reads and writes the pixels of a BufferedImage straight from the array behind its raster
+ * (DataBufferInt or DataBufferByte), instead of getRGB and setRGB, which send every single
+ * pixel through the color model. Pixels are always given as ARGB ints, row by row, the same
+ * values getRGB returns, so every filter can be one simple loop over an int[].
+ * The types pictures are usually read as are done this way: TYPE_INT_ARGB, TYPE_INT_RGB
+ * (PNGs and what the filters create) and TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR (JPEGs, PNGs).
+ * Sub-images made by getSubimage work too. Any other type falls back to one bulk getRGB/setRGB.
+ */
+final class Pixels {
+
+    private Pixels() {
+    }
+
+    /**
+     * Reads the ARGB value of every pixel into the buffer, row by row.
+     * @param image image to read
+     * @param buffer array to read into, used if it has room for all the pixels
+     * @return buffer, or a new bigger array if buffer was too small
+     */
+    static int[] readArgb(BufferedImage image, int[] buffer) {
+        return readArgbRows(image, 0, image.getHeight(), buffer);
+    }
+
+    /**
+     * Reads the ARGB value of every pixel in the given rows into the buffer, row by row.
+     * Reading a big picture a few rows at a time keeps the buffer small enough for the cache.
+     * @param image image to read
+     * @param firstRow first row to read
+     * @param rows number of rows to read
+     * @param buffer array to read into, used if it has room for all the pixels of the rows
+     * @return buffer, or a new bigger array if buffer was too small
+     */
+    static int[] readArgbRows(BufferedImage image, int firstRow, int rows, int[] buffer) {
+        int width = image.getWidth();
+        int[] argb = buffer != null && buffer.length >= width*rows ? buffer : new int[width*rows];
+
+        WritableRaster raster = image.getRaster();
+        switch(image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                int start = intOffset(raster, stride) + firstRow*stride;
+                for(int y = 0; y < rows; y++){
+                    System.arraycopy(data, start + y*stride, argb, y*width, width);
+                }
+                if(image.getType() == BufferedImage.TYPE_INT_RGB){
+                    //there is no alpha in the raster, getRGB gives those pixels as fully opaque
+                    for(int i = 0; i < width*rows; i++) argb[i] |= 0xFF000000;
+                }
+            }
+            case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR -> {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+                int[] bands = model.getBandOffsets();   //where red, green, blue (and alpha) are inside a pixel
+                int pixelStride = model.getPixelStride();
+                boolean hasAlpha = bands.length == 4;
+                int start = byteOffset(raster, model) + firstRow*model.getScanlineStride();
+
+                for(int y = 0; y < rows; y++){
+                    int p = start + y*model.getScanlineStride();
+                    for(int x = 0; x < width; x++, p += pixelStride){
+                        int a = hasAlpha ? data[p + bands[3]] & 0xFF : 0xFF;
+                        argb[y*width + x] = a << 24 | (data[p + bands[0]] & 0xFF) << 16
+                                | (data[p + bands[1]] & 0xFF) << 8 | data[p + bands[2]] & 0xFF;
+                    }
+                }
+            }
+            default -> image.getRGB(0, firstRow, width, rows, argb, 0, width);
+        }
+        return argb;
+    }
+
+    /**
+     * Writes the ARGB value of every pixel into the image, the opposite of readArgb.
+     * @param image image to write into
+     * @param argb pixels row by row, at least width*height of them
+     */
+    static void writeArgb(BufferedImage image, int[] argb) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        WritableRaster raster = image.getRaster();
+        switch(image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                //the alpha bits are ignored by TYPE_INT_RGB, so they can be copied as they are
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                int start = intOffset(raster, stride);
+                for(int y = 0; y < height; y++){
+                    System.arraycopy(argb, y*width, data, start + y*stride, width);
+                }
+            }
+            case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR -> {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+                int[] bands = model.getBandOffsets();
+                int pixelStride = model.getPixelStride();
+                boolean hasAlpha = bands.length == 4;
+                int start = byteOffset(raster, model);
+
+                for(int y = 0; y < height; y++){
+                    int p = start + y*model.getScanlineStride();
+                    for(int x = 0; x < width; x++, p += pixelStride){
+                        int pixel = argb[y*width + x];
+                        data[p + bands[0]] = (byte) (pixel >> 16);
+                        data[p + bands[1]] = (byte) (pixel >> 8);
+                        data[p + bands[2]] = (byte) pixel;
+                        if(hasAlpha) data[p + bands[3]] = (byte) (pixel >>> 24);
+                    }
+                }
+            }
+            default -> image.setRGB(0, 0, width, height, argb, 0, width);
+        }
+    }
+
+    /*A raster of a sub-image shares the array with its parent, its first pixel is somewhere
+    * inside the parent's rows. The sample model translation says where.*/
+    private static int intOffset(WritableRaster raster, int stride) {
+        return raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY()*stride - raster.getSampleModelTranslateX();
+    }
+
+    private static int byteOffset(WritableRaster raster, ComponentSampleModel model) {
+        return raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY()*model.getScanlineStride() - raster.getSampleModelTranslateX()*model.getPixelStride();
+    }
+}
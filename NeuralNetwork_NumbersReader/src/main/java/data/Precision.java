@@ -0,0 +1,11 @@
+package data;
+
+/**
+ * Type of numbers a Tensor stores its elements in. FLOAT uses half the memory of
+ * DOUBLE, so twice as many elements fit into the caches, and it is precise enough
+ * for networks of this size.
+ */
+public enum Precision {
+    DOUBLE,
+    FLOAT
+}
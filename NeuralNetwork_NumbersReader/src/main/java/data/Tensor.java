@@ -0,0 +1,346 @@
+package data;
+
+import java.util.Arrays;
+
+/**
+ * Multidimensional array of numbers stored in one flat double[] or float[] array,
+ * depending on the precision of the Tensor.
+ * Shape tells the size of every dimension, and strides tell how many elements
+ * of the flat array are between two neighbouring elements of a dimension.
+ * Layers pass their inputs and outputs as Tensors. A list of matrices, for example,
+ * is a Tensor of shape [length, rows, cols].
+ * Views (reshape, slice) share the flat array with the Tensor they were made from,
+ * so they are created without copying any data.
+ * get and set work with doubles for both precisions. Code that needs speed reads the
+ * flat array directly through data() or floatData().
+ */
+public final class Tensor {
+
+    private final double[] data;        //null if the Tensor holds floats
+    private final float[] floatData;    //null if the Tensor holds doubles
+    private final int offset;     //index of the first element in the flat array
+    private final int[] shape;
+    private final int[] strides;
+    private final boolean contiguous;
+
+    /**
+     * Creates a Tensor of doubles of the given shape filled with zeros.
+     * @param shape size of every dimension
+     */
+    public Tensor(int... shape) {
+        this(new double[count(shape)], 0, shape);
+    }
+
+    /**
+     * Creates a Tensor of the given precision and shape filled with zeros.
+     * @param precision type of numbers to store the elements in
+     * @param shape size of every dimension
+     */
+    public Tensor(Precision precision, int... shape) {
+        this(precision == Precision.DOUBLE ? new double[count(shape)] : null,
+                precision == Precision.FLOAT ? new float[count(shape)] : null,
+                0, shape.clone(), contiguousStrides(shape));
+    }
+
+    /**
+     * Creates a contiguous Tensor of doubles of the given shape over an existing array.
+     * @param data array holding the elements
+     * @param offset index of the first element in the array
+     * @param shape size of every dimension
+     */
+    public Tensor(double[] data, int offset, int... shape) {
+        this(data, null, offset, shape.clone(), contiguousStrides(shape));
+        checkBounds(data.length, offset, shape);
+    }
+
+    /**
+     * Creates a contiguous Tensor of floats of the given shape over an existing array.
+     * @param data array holding the elements
+     * @param offset index of the first element in the array
+     * @param shape size of every dimension
+     */
+    public Tensor(float[] data, int offset, int... shape) {
+        this(null, data, offset, shape.clone(), contiguousStrides(shape));
+        checkBounds(data.length, offset, shape);
+    }
+
+    private Tensor(double[] data, float[] floatData, int offset, int[] shape, int[] strides) {
+        this.data = data;
+        this.floatData = floatData;
+        this.offset = offset;
+        this.shape = shape;
+        this.strides = strides;
+        this.contiguous = Arrays.equals(strides, contiguousStrides(shape));
+    }
+
+    private static void checkBounds(int length, int offset, int[] shape) {
+        if(offset < 0 || offset + count(shape) > length){
+            throw new IllegalArgumentException("Shape " + Arrays.toString(shape) + " at offset " + offset
+                    + " does not fit into an array of length " + length);
+        }
+    }
+
+    private static int count(int[] shape) {
+        int count = 1;
+        for(int dim: shape){
+            if(dim < 0){
+                throw new IllegalArgumentException("Negative dimension in shape " + Arrays.toString(shape));
+            }
+            count *= dim;
+        }
+        return count;
+    }
+
+    private static int[] contiguousStrides(int[] shape) {
+        int[] strides = new int[shape.length];
+        int stride = 1;
+        for(int i = shape.length - 1; i >= 0; i--){
+            strides[i] = stride;
+            stride *= shape[i];
+        }
+        return strides;
+    }
+
+    public Precision precision() {
+        return data != null ? Precision.DOUBLE : Precision.FLOAT;
+    }
+
+    /**
+     * @return the flat array of a Tensor of doubles
+     * @throws IllegalStateException if this Tensor holds floats
+     */
+    public double[] data() {
+        if(data == null){
+            throw new IllegalStateException("Tensor holds floats, use floatData()");
+        }
+        return data;
+    }
+
+    /**
+     * @return the flat array of a Tensor of floats
+     * @throws IllegalStateException if this Tensor holds doubles
+     */
+    public float[] floatData() {
+        if(floatData == null){
+            throw new IllegalStateException("Tensor holds doubles, use data()");
+        }
+        return floatData;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int rank() {
+        return shape.length;
+    }
+
+    public int dim(int axis) {
+        return shape[axis];
+    }
+
+    public int stride(int axis) {
+        return strides[axis];
+    }
+
+    public int[] shape() {
+        return shape.clone();
+    }
+
+    /**
+     * @return number of elements in this Tensor
+     */
+    public int size() {
+        return count(shape);
+    }
+
+    /**
+     * @return true if the elements are stored one after another in the row-major order,
+     * so they can be read directly from data() starting at offset()
+     */
+    public boolean isContiguous() {
+        return contiguous;
+    }
+
+    /**
+     * Creates a view with a different shape but the same elements in the same order.
+     * @param shape new shape, it must have as many elements as this Tensor
+     * @return view sharing the data with this Tensor
+     */
+    public Tensor reshape(int... shape) {
+        if(count(shape) != size()){
+            throw new IllegalArgumentException("Cannot reshape " + Arrays.toString(this.shape) + " into " + Arrays.toString(shape));
+        }
+        if(!isContiguous()){
+            throw new IllegalStateException("Only a contiguous Tensor can be reshaped");
+        }
+        return new Tensor(data, floatData, offset, shape.clone(), contiguousStrides(shape));
+    }
+
+    /**
+     * Creates a view of one element of the first dimension, for example one matrix from
+     * a Tensor of shape [length, rows, cols].
+     * @param index index in the first dimension
+     * @return view with one dimension less, sharing the data with this Tensor
+     */
+    public Tensor slice(int index) {
+        if(index < 0 || index >= shape[0]){
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for dimension of size " + shape[0]);
+        }
+        return new Tensor(data, floatData, offset + index*strides[0],
+                Arrays.copyOfRange(shape, 1, shape.length), Arrays.copyOfRange(strides, 1, strides.length));
+    }
+
+    public int index(int i) {
+        return offset + i*strides[0];
+    }
+
+    public int index(int r, int c) {
+        return offset + r*strides[0] + c*strides[1];
+    }
+
+    public int index(int l, int r, int c) {
+        return offset + l*strides[0] + r*strides[1] + c*strides[2];
+    }
+
+    public double get(int i) {
+        return element(index(i));
+    }
+
+    public double get(int r, int c) {
+        return element(index(r, c));
+    }
+
+    public double get(int l, int r, int c) {
+        return element(index(l, r, c));
+    }
+
+    public void set(int i, double value) {
+        setElement(index(i), value);
+    }
+
+    public void set(int r, int c, double value) {
+        setElement(index(r, c), value);
+    }
+
+    public void set(int l, int r, int c, double value) {
+        setElement(index(l, r, c), value);
+    }
+
+    private double element(int index) {
+        return data != null ? data[index] : floatData[index];
+    }
+
+    private void setElement(int index, double value) {
+        if(data != null){
+            data[index] = value;
+        } else {
+            floatData[index] = (float) value;
+        }
+    }
+
+    /**
+     * Sets every element of this Tensor to the given value.
+     * @param value value to set
+     */
+    public void fill(double value) {
+        if(isContiguous()){
+            if(data != null){
+                Arrays.fill(data, offset, offset + size(), value);
+            } else {
+                Arrays.fill(floatData, offset, offset + size(), (float) value);
+            }
+            return;
+        }
+
+        for(int i = 0; i < shape[0]; i++){
+            if(shape.length == 1){
+                set(i, value);
+            } else {
+                slice(i).fill(value);
+            }
+        }
+    }
+
+    /**
+     * @return new contiguous Tensor of the same shape and precision with a copy of the elements
+     */
+    public Tensor copy() {
+        return toPrecision(precision(), true);
+    }
+
+    /**
+     * Copies the elements of this Tensor into another Tensor without allocating anything.
+     * Both Tensors must be contiguous and have the same size and precision, shapes can differ.
+     * @param target Tensor to copy the elements into
+     */
+    public void copyTo(Tensor target) {
+        if(target.size() != size() || target.precision() != precision() || !contiguous || !target.contiguous){
+            throw new IllegalArgumentException("Cannot copy " + this + " into " + target);
+        }
+
+        if(data != null){
+            System.arraycopy(data, offset, target.data, target.offset, size());
+        } else {
+            System.arraycopy(floatData, offset, target.floatData, target.offset, size());
+        }
+    }
+
+    /**
+     * Converts this Tensor to the given precision.
+     * @param precision precision of the result
+     * @return this Tensor if it already has the given precision, otherwise a new contiguous
+     * Tensor with the converted elements
+     */
+    public Tensor toPrecision(Precision precision) {
+        return toPrecision(precision, false);
+    }
+
+    private Tensor toPrecision(Precision precision, boolean alwaysCopy) {
+        if(precision == precision() && !alwaysCopy){
+            return this;
+        }
+
+        double[] elements = toArray();
+        if(precision == Precision.DOUBLE){
+            return new Tensor(elements, 0, shape);
+        }
+
+        float[] floats = new float[elements.length];
+        for(int i = 0; i < elements.length; i++){
+            floats[i] = (float) elements[i];
+        }
+        return new Tensor(floats, 0, shape);
+    }
+
+    /**
+     * @return new array with all the elements of this Tensor in the row-major order
+     */
+    public double[] toArray() {
+        if(isContiguous() && data != null){
+            return Arrays.copyOfRange(data, offset, offset + size());
+        }
+
+        double[] array = new double[size()];
+        int[] position = new int[shape.length];
+        for(int i = 0; i < array.length; i++){
+            int index = offset;
+            for(int axis = 0; axis < shape.length; axis++){
+                index += position[axis]*strides[axis];
+            }
+            array[i] = element(index);
+
+            //move to the next position, last dimension changes the fastest
+            for(int axis = shape.length - 1; axis >= 0; axis--){
+                if(++position[axis] < shape[axis]) break;
+                position[axis] = 0;
+            }
+        }
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return "Tensor" + Arrays.toString(shape) + " of " + precision();
+    }
+}
@@ -0,0 +1,105 @@
+package data;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Versions of the MatrixUtility loops that use the Vector API, so the CPU adds and
+ * multiplies as many numbers at once as its widest vector registers can hold
+ * (4 doubles with AVX2, 8 with AVX-512, twice as many floats).
+ * Only MatrixUtility calls this class, and only if MatrixUtility.SIMD is true,
+ * because loading it fails when the jdk.incubator.vector module is not in the JVM.
+ * Elements that do not fill a whole vector at the end are done one by one.
+ */
+final class VectorKernels {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    private VectorKernels() {
+    }
+
+    static void axpy(int n, double alpha, double[] x, int xOffset, double[] y, int yOffset) {
+        int i = 0;
+        for(; i < DOUBLES.loopBound(n); i += DOUBLES.length()){
+            DoubleVector xs = DoubleVector.fromArray(DOUBLES, x, xOffset + i);
+            DoubleVector ys = DoubleVector.fromArray(DOUBLES, y, yOffset + i);
+            ys.add(xs.mul(alpha)).intoArray(y, yOffset + i);
+        }
+        for(; i < n; i++) y[yOffset + i] += alpha * x[xOffset + i];
+    }
+
+    static void axpy(int n, float alpha, float[] x, int xOffset, float[] y, int yOffset) {
+        int i = 0;
+        for(; i < FLOATS.loopBound(n); i += FLOATS.length()){
+            FloatVector xs = FloatVector.fromArray(FLOATS, x, xOffset + i);
+            FloatVector ys = FloatVector.fromArray(FLOATS, y, yOffset + i);
+            ys.add(xs.mul(alpha)).intoArray(y, yOffset + i);
+        }
+        for(; i < n; i++) y[yOffset + i] += alpha * x[xOffset + i];
+    }
+
+    static double dot(int n, double[] x, int xOffset, double[] y, int yOffset) {
+        DoubleVector sums = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for(; i < DOUBLES.loopBound(n); i += DOUBLES.length()){
+            DoubleVector xs = DoubleVector.fromArray(DOUBLES, x, xOffset + i);
+            DoubleVector ys = DoubleVector.fromArray(DOUBLES, y, yOffset + i);
+            sums = sums.add(xs.mul(ys));
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for(; i < n; i++) sum += x[xOffset + i] * y[yOffset + i];
+        return sum;
+    }
+
+    static float dot(int n, float[] x, int xOffset, float[] y, int yOffset) {
+        FloatVector sums = FloatVector.zero(FLOATS);
+        int i = 0;
+        for(; i < FLOATS.loopBound(n); i += FLOATS.length()){
+            FloatVector xs = FloatVector.fromArray(FLOATS, x, xOffset + i);
+            FloatVector ys = FloatVector.fromArray(FLOATS, y, yOffset + i);
+            sums = sums.add(xs.mul(ys));
+        }
+        float sum = sums.reduceLanes(VectorOperators.ADD);
+        for(; i < n; i++) sum += x[xOffset + i] * y[yOffset + i];
+        return sum;
+    }
+
+    static void add(int n, double[] a, int aOffset, double[] b, int bOffset, double[] result, int resultOffset) {
+        int i = 0;
+        for(; i < DOUBLES.loopBound(n); i += DOUBLES.length()){
+            DoubleVector as = DoubleVector.fromArray(DOUBLES, a, aOffset + i);
+            DoubleVector bs = DoubleVector.fromArray(DOUBLES, b, bOffset + i);
+            as.add(bs).intoArray(result, resultOffset + i);
+        }
+        for(; i < n; i++) result[resultOffset + i] = a[aOffset + i] + b[bOffset + i];
+    }
+
+    static void scale(int n, double scalar, double[] a, int aOffset, double[] result, int resultOffset) {
+        int i = 0;
+        for(; i < DOUBLES.loopBound(n); i += DOUBLES.length()){
+            DoubleVector.fromArray(DOUBLES, a, aOffset + i).mul(scalar).intoArray(result, resultOffset + i);
+        }
+        for(; i < n; i++) result[resultOffset + i] = a[aOffset + i] * scalar;
+    }
+
+    static void add(int n, float[] a, int aOffset, float[] b, int bOffset, float[] result, int resultOffset) {
+        int i = 0;
+        for(; i < FLOATS.loopBound(n); i += FLOATS.length()){
+            FloatVector as = FloatVector.fromArray(FLOATS, a, aOffset + i);
+            FloatVector bs = FloatVector.fromArray(FLOATS, b, bOffset + i);
+            as.add(bs).intoArray(result, resultOffset + i);
+        }
+        for(; i < n; i++) result[resultOffset + i] = a[aOffset + i] + b[bOffset + i];
+    }
+
+    static void scale(int n, float scalar, float[] a, int aOffset, float[] result, int resultOffset) {
+        int i = 0;
+        for(; i < FLOATS.loopBound(n); i += FLOATS.length()){
+            FloatVector.fromArray(FLOATS, a, aOffset + i).mul(scalar).intoArray(result, resultOffset + i);
+        }
+        for(; i < n; i++) result[resultOffset + i] = a[aOffset + i] * scalar;
+    }
+}
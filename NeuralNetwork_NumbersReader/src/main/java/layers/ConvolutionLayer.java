@@ -1,16 +1,45 @@
 package layers;
 
+import data.Precision;
+import data.Tensor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serial;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
-import static data.MatrixUtility.*;
+import static data.MatrixUtility.addInto;
+import static data.MatrixUtility.axpy;
+import static data.MatrixUtility.matmul;
 
 public class ConvolutionLayer extends Layer{
 
+    @Serial
+    private static final long serialVersionUID = 2287486786873389134L;
+
+    /*Filters are serialized as a List of matrices, the way they were stored before the
+    * layers switched to Tensors, so the networks saved before that can still be loaded.*/
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("SEED", long.class),
+            new ObjectStreamField("_filters", List.class),
+            new ObjectStreamField("_filterSize", int.class),
+            new ObjectStreamField("_stepSize", int.class),
+            new ObjectStreamField("_inputLength", int.class),
+            new ObjectStreamField("_inputRows", int.class),
+            new ObjectStreamField("_inputCols", int.class),
+            new ObjectStreamField("_learningRate", double.class)
+    };
+
     private long SEED;  // seed for generating random filters
 
-    private List<double[][]> _filters;
+    private transient Tensor _filters;    // shaped [number of filters, _filterSize, _filterSize]
+    private transient int _numFilters;
     private int _filterSize;
     private int _stepSize;
 
@@ -20,9 +49,27 @@ public class ConvolutionLayer extends Layer{
 
     private double _learningRate;
 
-    private List<double[][]> _lastInput;    // the last input into this layer.
+    private transient Tensor _lastColumns;    // columns of the last input into this layer, made by toColumns.
+
+    private transient Tensor _filterGradients;   // sum of dL/dF for every filter over the current batch, same shape as _filters
+
+    /*Workspace, allocated once in allocateWorkspace and reused for every image. Views of the
+    * matrices used in the multiplications are made once as well, because a view is a new object.*/
+    private transient Tensor _output;
+    private transient Tensor _dLdX;             // loss passed to the previous layer
+    private transient Tensor _dLdColumns;
+    private transient Tensor _filterMatrix;     // _filters as [number of filters, _filterSize*_filterSize]
+    private transient Tensor _gradientMatrix;   // _filterGradients, same shape as _filterMatrix
+    private transient Tensor[] _columnMatrices;   // _lastColumns for every input matrix
+    private transient Tensor[] _outputMatrices;   // _output as [number of filters, output rows*output cols] for every input matrix
+    private transient Tensor _lastLoss;           // last dLdO passed to backPropagation
+    private transient Tensor[] _lossMatrices;     // _lastLoss split the same way as _outputMatrices
 
     public ConvolutionLayer(int _filterSize, int _stepSize, int _inputLength, int _inputRows, int _inputCols, long SEED, int numberOfFilters, double learningRate) {
+        this(_filterSize, _stepSize, _inputLength, _inputRows, _inputCols, SEED, numberOfFilters, learningRate, Precision.DOUBLE);
+    }
+
+    public ConvolutionLayer(int _filterSize, int _stepSize, int _inputLength, int _inputRows, int _inputCols, long SEED, int numberOfFilters, double learningRate, Precision precision) {
         this._filterSize = _filterSize;
         this._stepSize = _stepSize;
         this._inputLength = _inputLength;
@@ -30,254 +77,468 @@ public class ConvolutionLayer extends Layer{
         this._inputCols = _inputCols;
         this.SEED = SEED;
         this._learningRate = learningRate;
+        this._precision = precision;
 
         generateRandomFilters(numberOfFilters);
 
     }
 
+    private ConvolutionLayer(ConvolutionLayer original, Tensor filters) {
+        this._filterSize = original._filterSize;
+        this._stepSize = original._stepSize;
+        this._inputLength = original._inputLength;
+        this._inputRows = original._inputRows;
+        this._inputCols = original._inputCols;
+        this.SEED = original.SEED;
+        this._learningRate = original._learningRate;
+
+        this._precision = filters.precision();
+
+        _filters = filters;
+        _numFilters = original._numFilters;
+    }
+
+    private ConvolutionLayer(int _filterSize, int _stepSize, int _inputLength, int _inputRows, int _inputCols, long SEED, double learningRate, Tensor filters) {
+        this._filterSize = _filterSize;
+        this._stepSize = _stepSize;
+        this._inputLength = _inputLength;
+        this._inputRows = _inputRows;
+        this._inputCols = _inputCols;
+        this.SEED = SEED;
+        this._learningRate = learningRate;
+        this._precision = filters.precision();
+
+        _filters = filters;
+        _numFilters = filters.dim(0);
+    }
+
     private void generateRandomFilters(int numOfFilters) {
-        List<double[][]> filters = new ArrayList<>();
+        Tensor filters = new Tensor(getPrecision(), numOfFilters, _filterSize, _filterSize);
         Random random = new Random(SEED);
 
         for(int n=0; n<numOfFilters; n++) {
-            double[][] filter = new double[_filterSize][_filterSize];
-
             for(int i = 0; i< _filterSize; i++) {
                 for(int j = 0; j< _filterSize; j++) {
-
-                    double value = random.nextGaussian();
-                    filter[i][j] = value;
+                    filters.set(n, i, j, random.nextGaussian());
                 }
             }
-
-            filters.add(filter);
         }
 
         _filters = filters;
+        _numFilters = numOfFilters;
     }
 
-    /**
-     * Filters every input matrix through every convolutional filter matrix.
-     * Convolves the input matrix with every filter matrix from this layer.
-     * @param list
-     * @return
-     */
-    public List<double[][]> convolutionForwardPass(List<double[][]> list) {
-        _lastInput = list;
+    @Override
+    public void allocateWorkspace() {
+        int windowSize = _filterSize*_filterSize;
 
-        List<double[][]> output = new ArrayList<>();
+        _lastColumns = new Tensor(getPrecision(), _inputLength, windowSize, getOutputRows()*getOutputCols());
+        _output = new Tensor(getPrecision(), getOutputLength(), getOutputRows(), getOutputCols());
+        _dLdX = new Tensor(getPrecision(), _inputLength, _inputRows, _inputCols);
+        _dLdColumns = new Tensor(getPrecision(), windowSize, getOutputRows()*getOutputCols());
 
-        for(int m=0; m<list.size(); m++) {
-            for(var filter: _filters){
-                output.add(convolve(list.get(m), filter, _stepSize));
-            }
+        if(_filterGradients == null){
+            _filterGradients = new Tensor(getPrecision(), _numFilters, _filterSize, _filterSize);
         }
-        return output;
-    }
+        _filterMatrix = _filters.reshape(_numFilters, windowSize);
+        _gradientMatrix = _filterGradients.reshape(_numFilters, windowSize);
 
-    private double[][] convolve(double[][] input, double[][] filter, int stepSize) {
-         int outputRows = (input.length - filter.length) / stepSize + 1;
-         int outputCols = (input[0].length - filter[0].length) / stepSize + 1;
-
-         int inputRows = input.length;
-         int inputCols = input[0].length;
-
-         int filterRows = filter.length;
-         int filterCols = filter[0].length;
-
-         double[][] output = new double[outputRows][outputCols];
-
-         int outRow = 0;    //for iterating over convolution result matrix while filling it.
-         int outCol;
+        _columnMatrices = new Tensor[_inputLength];
+        _outputMatrices = splitOutput(_output);
+        for(int m=0; m<_inputLength; m++) {
+            _columnMatrices[m] = _lastColumns.slice(m);
+        }
+    }
 
-         for(int i = 0; i <= inputRows - filterRows; i += stepSize) {
+    /**
+     * Splits a Tensor with an element for every output of this layer into the matrices
+     * of the outputs of every input matrix.
+     * @param output Tensor with getOutputElements() elements
+     * @return for every input matrix a view of shape [number of filters, output rows*output cols]
+     */
+    private Tensor[] splitOutput(Tensor output) {
+        Tensor outputs = output.reshape(_inputLength, _numFilters, getOutputRows()*getOutputCols());
+        Tensor[] matrices = new Tensor[_inputLength];
+        for(int m=0; m<_inputLength; m++) {
+            matrices[m] = outputs.slice(m);
+        }
+        return matrices;
+    }
 
-             outCol = 0;
+    /**
+     * Filters every input matrix through every convolutional filter matrix.
+     * Convolves the input matrix with every filter matrix from this layer.
+     * The columns of the input are saved for backpropagation.
+     * @param input Tensor with _inputLength matrices
+     * @return Tensor of shape [_inputLength * number of filters, output rows, output cols],
+     * results for the first input matrix come first
+     */
+    public Tensor convolutionForwardPass(Tensor input) {
+        toColumns(input, _lastColumns);
 
-             for(int j = 0; j <= inputCols - filterCols; j += stepSize) {
-                 double sum = 0;
-                 //filter from this i j position.
-                 for(int x=0; x < filterRows; x++) {
-                     for(int y=0; y < filterCols; y++) {
-                         sum += filter[x][y] * input[i+x][j+y];
-                     }
-                 }
+        _output.fill(0);
+        convolveAll(_filterMatrix, _columnMatrices, _outputMatrices);
+        return _output;
+    }
 
-                 output[outRow][outCol++] = sum;
+    /**
+     * Every window of the input the filters are applied to is copied into a column
+     * of a matrix (im2col). Convolving one input matrix with all the filters is then a
+     * single matrix multiplication: filters [F, filterSize*filterSize] * columns
+     * [filterSize*filterSize, output rows*output cols] gives the outputs of all F filters.
+     * @param filters filters as a matrix of shape [F, filterSize*filterSize]
+     * @param columns columns of every input matrix, made by toColumns
+     * @param outputs matrices to add the outputs of every input matrix to
+     */
+    private static void convolveAll(Tensor filters, Tensor[] columns, Tensor[] outputs) {
+        for(int m=0; m<columns.length; m++) {
+            matmul(filters, false, columns[m], false, outputs[m]);
+        }
+    }
 
-             }
-             outRow++;
-         }
+    /**
+     * Copies every window of every input matrix into the columns of a matrix.
+     * Element [m, x*filterSize + y, r*outputCols + c] is the element at the position x, y
+     * in the window of the m-th input matrix whose output is at the position r, c.
+     * @param input contiguous Tensor with _inputLength matrices
+     * @param columns Tensor of shape [_inputLength, filterSize*filterSize, output rows*output cols]
+     */
+    private void toColumns(Tensor input, Tensor columns) {
+        int inputSize = _inputRows*_inputCols;
+        int positions = getOutputRows()*getOutputCols();
+
+        for(int m=0; m<_inputLength; m++) {
+            if(getPrecision() == Precision.DOUBLE){
+                toColumns(input.data(), input.offset() + m*inputSize, columns.data(), columns.index(m, 0, 0), positions);
+            } else {
+                toColumns(input.floatData(), input.offset() + m*inputSize, columns.floatData(), columns.index(m, 0, 0), positions);
+            }
+        }
+    }
 
-         return output;
+    /*rowLength is the length of a row of the columns matrix, bigger than output rows*output cols
+    * when the columns of more input matrices are side by side (see forwardBatch).*/
+    private void toColumns(double[] input, int inputOffset, double[] columns, int columnsOffset, int rowLength) {
+        for(int x=0; x < _filterSize; x++) {
+            for(int y=0; y < _filterSize; y++) {
+                int index = columnsOffset + (x*_filterSize + y)*rowLength;
+                for(int r=0; r < getOutputRows(); r++) {
+                    int inputIndex = inputOffset + (r*_stepSize + x)*_inputCols + y;
+                    for(int c=0; c < getOutputCols(); c++) {
+                        columns[index++] = input[inputIndex + c*_stepSize];
+                    }
+                }
+            }
+        }
+    }
 
+    private void toColumns(float[] input, int inputOffset, float[] columns, int columnsOffset, int rowLength) {
+        for(int x=0; x < _filterSize; x++) {
+            for(int y=0; y < _filterSize; y++) {
+                int index = columnsOffset + (x*_filterSize + y)*rowLength;
+                for(int r=0; r < getOutputRows(); r++) {
+                    int inputIndex = inputOffset + (r*_stepSize + x)*_inputCols + y;
+                    for(int c=0; c < getOutputCols(); c++) {
+                        columns[index++] = input[inputIndex + c*_stepSize];
+                    }
+                }
+            }
+        }
     }
 
-    /** Enlarges the input matrix, moves the values of the input array to the corners and
-     * fills the new spaces with zeros. Used for simplifying the process of backpropagation.
-     * After this method is applied to the matrix of loss from the upper layer, all this
-     * layer needs to do is apply the convolution on the input matrix and spaced matrix of loss
-     * and subtract that matrix from the filter(s).
-     * @param input matrix to be spaced
-     * @return new spaced matrix
+    /**
+     * Opposite of toColumns (col2im). Every element of the columns is added to the position
+     * of the input it was copied from, so the positions covered by more windows get the sum
+     * of all of them.
+     * @param columns matrix of shape [filterSize*filterSize, output rows*output cols]
+     * @param output Tensor of shape [_inputLength, _inputRows, _inputCols] to add to
+     * @param m index of the input matrix in output to add to
      */
-    public double[][] spaceMatrix(double[][] input){
-
-        if(_stepSize == 1) return input;
-
-        int outRows = (input.length - 1)*_stepSize + 1;
-        int outCols = (input[0].length - 1)*_stepSize + 1;
+    private void addColumns(Tensor columns, Tensor output, int m) {
+        if(getPrecision() == Precision.DOUBLE){
+            addColumns(columns.data(), columns.offset(), output.data(), output.index(m, 0, 0));
+        } else {
+            addColumns(columns.floatData(), columns.offset(), output.floatData(), output.index(m, 0, 0));
+        }
+    }
 
-        double[][] output = new double[outRows][outCols];
+    private void addColumns(double[] columns, int columnsOffset, double[] output, int outputOffset) {
+        int index = columnsOffset;
+        for(int x=0; x < _filterSize; x++) {
+            for(int y=0; y < _filterSize; y++) {
+                for(int r=0; r < getOutputRows(); r++) {
+                    int outputIndex = outputOffset + (r*_stepSize + x)*_inputCols + y;
+                    for(int c=0; c < getOutputCols(); c++) {
+                        output[outputIndex + c*_stepSize] += columns[index++];
+                    }
+                }
+            }
+        }
+    }
 
-        for(int i = 0; i < input.length; i++){
-            for(int j = 0; j < input[0].length; j++){
-                output[i*_stepSize][j*_stepSize] = input[i][j];
+    private void addColumns(float[] columns, int columnsOffset, float[] output, int outputOffset) {
+        int index = columnsOffset;
+        for(int x=0; x < _filterSize; x++) {
+            for(int y=0; y < _filterSize; y++) {
+                for(int r=0; r < getOutputRows(); r++) {
+                    int outputIndex = outputOffset + (r*_stepSize + x)*_inputCols + y;
+                    for(int c=0; c < getOutputCols(); c++) {
+                        output[outputIndex + c*_stepSize] += columns[index++];
+                    }
+                }
             }
         }
-        return output;
     }
 
 
     @Override
-    public double[] getOutput(List<double[][]> input) {
-        List<double[][]> output = convolutionForwardPass(input);
+    public Tensor getOutput(Tensor input) {
+        Tensor output = convolutionForwardPass(input);
         return _nextLayer.getOutput(output);    //convolution layer is never the last layer so no need for checking if there is a next layer
     }
 
     @Override
-    public double[] getOutput(double[] input) {
-        List<double[][]> matrixInput = vectorToMatrix(input, _inputLength, _inputRows, _inputCols);
-        return getOutput(matrixInput);
+    public Tensor forward(Tensor input) {
+        //new Tensors instead of the workspace, so this can run from many threads
+        Tensor columns = new Tensor(getPrecision(), _inputLength, _filterSize*_filterSize, getOutputRows()*getOutputCols());
+        toColumns(input, columns);
+
+        Tensor[] columnMatrices = new Tensor[_inputLength];
+        for(int m=0; m<_inputLength; m++) {
+            columnMatrices[m] = columns.slice(m);
+        }
+
+        Tensor output = new Tensor(getPrecision(), getOutputLength(), getOutputRows(), getOutputCols());
+        convolveAll(_filters.reshape(_numFilters, _filterSize*_filterSize), columnMatrices, splitOutput(output));
+        return output;
     }
 
     @Override
-    public void backPropagation(List<double[][]> dLdO) {
-        /*Each filter could be applied more than once because we have
-         a list of matrices as an input in this layer, and every matrix
-         needs to be put through every filter.
-         So we need to calculate the error for every filter more than once by summing.*/
-        List<double[][]> filtersDelta = new ArrayList<>();
-        List<double[][]> dLdOPreviousLayer = new ArrayList<>();
-
-        for(int f=0; f<_filters.size(); f++){
-            filtersDelta.add(new double[_filterSize][_filterSize]);
+    public Tensor forwardBatch(Tensor inputs) {
+        int batchSize = inputs.dim(0);
+        int windowSize = _filterSize*_filterSize;
+        int positions = getOutputRows()*getOutputCols();
+        int matrices = batchSize*_inputLength;     //every input matrix of every input goes through the same filters
+        int inputSize = _inputRows*_inputCols;
+
+        /*Columns of all the input matrices side by side in one matrix, so the whole batch is
+        * a single multiplication [F, windowSize] * [windowSize, matrices*positions], instead of
+        * one small multiplication for every input matrix.
+        * Every output is still summed over the window in the same order, so it is exactly the
+        * same as the output of forward.*/
+        Tensor columns = new Tensor(getPrecision(), windowSize, matrices*positions);
+        Tensor products = new Tensor(getPrecision(), _numFilters, matrices*positions);
+        Tensor outputs = new Tensor(getPrecision(), batchSize, getOutputElements());
+
+        if(getPrecision() == Precision.DOUBLE){
+            for(int m=0; m<matrices; m++) {
+                toColumns(inputs.data(), inputs.offset() + m*inputSize, columns.data(), m*positions, matrices*positions);
+            }
+        } else {
+            for(int m=0; m<matrices; m++) {
+                toColumns(inputs.floatData(), inputs.offset() + m*inputSize, columns.floatData(), m*positions, matrices*positions);
+            }
         }
 
-        for(int i=0; i<_lastInput.size(); i++){
-
-            double[][] errorForInput = new double[_inputRows][_inputCols];
+        matmul(_filters.reshape(_numFilters, windowSize), false, columns, false, products);
 
-            for(int f=0; f<_filters.size(); f++){
+        //products of the m-th matrix and the f-th filter go to [m*F + f] in the outputs, results for one input matrix come first
+        for(int m=0; m<matrices; m++) {
+            for(int f=0; f<_numFilters; f++) {
+                if(getPrecision() == Precision.DOUBLE){
+                    System.arraycopy(products.data(), f*matrices*positions + m*positions, outputs.data(), (m*_numFilters + f)*positions, positions);
+                } else {
+                    System.arraycopy(products.floatData(), f*matrices*positions + m*positions, outputs.floatData(), (m*_numFilters + f)*positions, positions);
+                }
+            }
+        }
+        return outputs;
+    }
 
-                double[][] currFilter = _filters.get(f);
-                double[][] error = dLdO.get(i*_filters.size() + f); //dL/dO matrix of error for current input and current filter
+    @Override
+    public void backPropagation(Tensor dLdO) {
+        /*Each filter could be applied more than once because we have
+         a list of matrices as an input in this layer, and every matrix
+         needs to be put through every filter.
+         So we need to calculate the error for every filter more than once by summing.
+         The sums are kept until applyGradients is called, so they also add up over the batch.
+
+         Both parts of the backpropagation are matrix multiplications over the columns
+         saved in the forward pass, so the error never has to be spaced for steps
+         bigger than 1, and there are no bounds to check.*/
+        if(dLdO != _lastLoss){
+            //the next layer passes the same Tensor from its workspace every time, so this is done only once
+            _lastLoss = dLdO;
+            _lossMatrices = splitOutput(dLdO);
+        }
+        Tensor[] loss = _lossMatrices;
+        Tensor dLdOPreviousLayer = _dLdX;
+        boolean passLoss = _previousLayer != null;     //the first layer has nobody to pass the loss to
+        if(passLoss){
+            dLdOPreviousLayer.fill(0);
+        }
 
-                double[][] spacedError = spaceMatrix(error);
-                double[][] dLdF = convolve(_lastInput.get(i), spacedError, 1);
+        for(int i=0; i<_inputLength; i++){
 
-                /*You need to multiply dLdF by the learning rate and add that matrix
-                * to the curr filter. Then the filter is updated. Using custom my custom
-                * Matrix utility class for that because there isn't one in Java by default.*/
+            /*dLdF of every filter is the convolution of the input with its dL/dO matrix,
+            * which is dL/dO [F, outputs] * columns^T [outputs, window]. It is summed into
+            * the gradients. The filters are changed only in applyGradients, where the
+            * gradient is multiplied by the learning rate and subtracted from them.*/
 
-                double[][] delta = multiply(dLdF, _learningRate*-1);    // It will be added, not subtracted, so the learning rate is multiplied by negative one.
-                double[][] newTotalDelta = add(filtersDelta.get(f), delta);
-                filtersDelta.set(f, newTotalDelta);
+            matmul(loss[i], false, _columnMatrices[i], true, _gradientMatrix);
 
-                /*Doing a full convolution on flipped and spaced error matrix (sliding window)
-                * and current filter. The list of results should be passed to the previous layer as
-                * an input for the backpropagation. */
+            /*Now you need to send this layer's error to the layer below.
+            * https://www.youtube.com/watch?v=njlyOAiK_yE  the formula is at 23:18
+            * and the proof/explanation is from 18:05.
+            * Error from our inputs is the full convolution of the filters and the flipped
+            * dL/dO matrices. Here it is computed as filters^T [window, F] * dL/dO [F, outputs],
+            * which gives the error of every element in every window, and then every window
+            * is added back to the place in the input it was taken from.*/
 
-                double[][] flippedError = flipHorizontal(flipVertical(spacedError));
-                errorForInput = add(errorForInput, fullConvolve(currFilter, flippedError));
+            if(passLoss){
+                _dLdColumns.fill(0);
+                matmul(_filterMatrix, true, loss[i], false, _dLdColumns);
+                addColumns(_dLdColumns, dLdOPreviousLayer, i);
             }
-
-            dLdOPreviousLayer.add(errorForInput);
-
-        }
-
-        for(int f=0; f< _filters.size(); f++) {
-            double[][] modified = add(filtersDelta.get(f), _filters.get(f));
-            _filters.set(f, modified);
         }
 
-        /*Now you need to send this layer's error to the layer below.
-        * https://www.youtube.com/watch?v=njlyOAiK_yE  the formula is at 23:18
-        * and the proof/explanation is from 18:05.
-        * Error from our inputs is equivalent to FullConvolution of filter and
-        * spaced and mirrored/flipped matrix of our output which we get through this method. */
-
-        if(_previousLayer != null){
+        if(passLoss){
             _previousLayer.backPropagation(dLdOPreviousLayer);
         }
 
     }
 
-    @Override
-    public void backPropagation(double[] dLdO) {
-        List<double[][]> matrixInput = vectorToMatrix(dLdO, _inputLength, _inputRows, _inputCols);
-        backPropagation(matrixInput);
-    }
-
     /**
-     *
-     * Visual explanation is in the following video at 22:24
-     * <a href="https://www.youtube.com/watch?v=njlyOAiK_yE">...</a>
-     * @param input the sliding window dL/dO matrix
-     * @param filter the filter
-     * @return the result of full convolution with the sliding window and the filter
+     * Subtracts the accumulated filter gradients multiplied by the learning rate from the filters.
+     * Filters are changed in place, so anyone holding a reference to them sees the new values.
+     * @param batchSize number of images whose gradients were accumulated
      */
-    private double[][] fullConvolve(double[][] input, double[][] filter) {
-        int outputRows = (input.length + filter.length)  + 1;
-        int outputCols = (input[0].length + filter[0].length)  + 1;
-
-        int inputRows = input.length;
-        int inputCols = input[0].length;
-
-        int filterRows = filter.length;
-        int filterCols = filter[0].length;
+    @Override
+    public void applyGradients(int batchSize) {
+        if(_filterGradients == null){
+            return;     //nothing was accumulated yet
+        }
 
-        double[][] output = new double[outputRows][outputCols];
+        axpy(-_learningRate / batchSize, _filterGradients, _filters);
+        _filterGradients.fill(0);
+    }
 
-        int outRow = 0;    //for iterating over convolution result matrix while filling it.
-        int outCol;
+    @Override
+    public Layer replicate() {
+        return new ConvolutionLayer(this, _filters);
+    }
 
-        /*The window of filter size (loss matrix (dL/dOutput) spaced to the size of filter)
-        travels through the filter matrix. index i starts from the -filterRows + 1 and j starts
-        from the -filterCols + 1 because i and j are the indexes of the sliding window matrix
-        that slides through the filter matrix.*/
-        for(int i = -filterRows + 1; i <= inputRows; i ++) {
+    @Override
+    public Layer copy(Precision precision) {
+        Tensor filters = precision == getPrecision() ? _filters.copy() : _filters.toPrecision(precision);
+        return new ConvolutionLayer(this, filters);
+    }
 
-            outCol = 0;
+    @Override
+    public void mergeGradients(Layer replica) {
+        Tensor replicaGradients = ((ConvolutionLayer) replica)._filterGradients;
+        if(replicaGradients == null){
+            return;     //replica did not train on anything yet
+        }
 
-            for(int j = -filterCols + 1; j <= inputCols; j ++) {
-                double sum = 0;
-                //filter from this i j position.
-                for(int x=0; x < filterRows; x++) {
-                    for(int y=0; y < filterCols; y++) {
-                        int inputRowIndex = i + x;
-                        int inputColIndex = j + y;
+        if(_filterGradients == null){
+            _filterGradients = new Tensor(getPrecision(), _numFilters, _filterSize, _filterSize);
+        }
 
-                        if(inputRowIndex >= 0 && inputColIndex >= 0 && inputRowIndex < inputRows && inputColIndex < inputCols) {
-                            sum += filter[x][y] * input[inputRowIndex][inputColIndex];
-                        }
+        addInto(_filterGradients, replicaGradients, _filterGradients);
+        replicaGradients.fill(0);
+    }
 
-                    }
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        List<double[][]> filters = new ArrayList<>();
+        for(int f=0; f<_numFilters; f++){
+            double[][] filter = new double[_filterSize][_filterSize];
+            for(int i = 0; i < _filterSize; i++){
+                for(int j = 0; j < _filterSize; j++){
+                    filter[i][j] = _filters.get(f, i, j);
                 }
+            }
+            filters.add(filter);
+        }
 
-                output[outRow][outCol++] = sum;
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("SEED", SEED);
+        fields.put("_filters", filters);
+        fields.put("_filterSize", _filterSize);
+        fields.put("_stepSize", _stepSize);
+        fields.put("_inputLength", _inputLength);
+        fields.put("_inputRows", _inputRows);
+        fields.put("_inputCols", _inputCols);
+        fields.put("_learningRate", _learningRate);
+        out.writeFields();
+    }
 
+    @Serial
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        SEED = fields.get("SEED", 0L);
+        _filterSize = fields.get("_filterSize", 0);
+        _stepSize = fields.get("_stepSize", 0);
+        _inputLength = fields.get("_inputLength", 0);
+        _inputRows = fields.get("_inputRows", 0);
+        _inputCols = fields.get("_inputCols", 0);
+        _learningRate = fields.get("_learningRate", 0.0);
+
+        List<double[][]> filters = (List<double[][]>) fields.get("_filters", null);
+        _numFilters = filters.size();
+        _filters = new Tensor(getPrecision(), _numFilters, _filterSize, _filterSize);
+        for(int f=0; f<_numFilters; f++){
+            for(int i = 0; i < _filterSize; i++){
+                for(int j = 0; j < _filterSize; j++){
+                    _filters.set(f, i, j, filters.get(f)[i][j]);
+                }
             }
-            outRow++;
         }
+    }
 
-        return output;
+    @Override
+    public void writeSettings(ByteBuffer out) {
+        out.putInt(_filterSize);
+        out.putInt(_stepSize);
+        out.putInt(_inputLength);
+        out.putInt(_inputRows);
+        out.putInt(_inputCols);
+        out.putInt(_numFilters);
+        out.putDouble(_learningRate);
+        out.putLong(SEED);
+    }
+
+    /**
+     * Creates a layer from the settings written by writeSettings. The filters are
+     * all zeros, they are read separately into weights().
+     * @param in little-endian buffer to read from
+     * @param precision precision of the layer
+     * @return new layer
+     */
+    public static ConvolutionLayer readSettings(ByteBuffer in, Precision precision) {
+        int filterSize = in.getInt();
+        int stepSize = in.getInt();
+        int inputLength = in.getInt();
+        int inputRows = in.getInt();
+        int inputCols = in.getInt();
+        int numFilters = in.getInt();
+        double learningRate = in.getDouble();
+        long seed = in.getLong();
+
+        Tensor filters = new Tensor(precision, numFilters, filterSize, filterSize);
+        return new ConvolutionLayer(filterSize, stepSize, inputLength, inputRows, inputCols, seed, learningRate, filters);
+    }
 
+    @Override
+    public Tensor weights() {
+        return _filters;
     }
 
     @Override
     public int getOutputLength() {
-        return _filters.size() * _inputLength;
+        return _numFilters * _inputLength;
     }
 
     @Override
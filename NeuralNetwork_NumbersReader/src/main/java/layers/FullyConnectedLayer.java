@@ -1,72 +1,177 @@
 package layers;
 
-import java.util.List;
+import data.Precision;
+import data.Tensor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serial;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
+import static data.MatrixUtility.addInto;
+import static data.MatrixUtility.axpy;
+import static data.MatrixUtility.dot;
+import static data.MatrixUtility.matmul;
+
 public class FullyConnectedLayer extends Layer{
 
+    @Serial
+    private static final long serialVersionUID = -887858512740454344L;
+
+    /*Weights are serialized as a double[_inputLength][_outputLength] matrix, the way they were
+    * stored before the layers switched to Tensors, so the networks saved before that can still be loaded.*/
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("SEED", long.class),
+            new ObjectStreamField("isLast", boolean.class),
+            new ObjectStreamField("_weights", double[][].class),
+            new ObjectStreamField("_inputLength", int.class),
+            new ObjectStreamField("_outputLength", int.class),
+            new ObjectStreamField("learningRate", double.class)
+    };
+
     private long SEED;
 
     private boolean isLast;
 
-    private double[][] _weights;
+    /*Shaped [_outputLength, _inputLength], the weights of every neuron are one row, one after
+    * another in a flat array. The forward pass reads them row by row, one dot product per neuron.*/
+    private transient Tensor _weights;
     private int _inputLength;
     private int _outputLength;
 
     private double learningRate;
 
-    private double[] lastNets;      //array of net values for each neuron in this layer (used for backpropagation)
-    private double[] lastInput;     //array of input values from the layer before. (same usage)
+    private transient double[] lastNets;    //array of net values for each neuron in this layer (used for backpropagation)
+    private transient Tensor lastInput;     //input values from the layer before. (same usage)
+
+    private transient Tensor _weightGradients;   //sum of dL/dw for every weight over the current batch
+
+    /*Workspace, allocated once in allocateWorkspace and reused for every image.*/
+    private transient float[] _floatNets;
+    private transient double[] _outputs;
+    private transient Tensor _output;           //_outputs in the precision of this layer
+    private transient double[] _dLdZ;
+    private transient float[] _floatdLdZ;
+    private transient Tensor _dLdX;
 
     public FullyConnectedLayer(int _inputLength, int _outputLength, long SEED, double learningRate, boolean isLast) {
+        this(_inputLength, _outputLength, SEED, learningRate, isLast, Precision.DOUBLE);
+    }
+
+    public FullyConnectedLayer(int _inputLength, int _outputLength, long SEED, double learningRate, boolean isLast, Precision precision) {
         this._inputLength = _inputLength;
         this._outputLength = _outputLength;
         this.SEED = SEED;
         this.learningRate = learningRate;
         this.isLast = isLast;
+        this._precision = precision;
 
-        _weights = new double[_inputLength][_outputLength];
+        _weights = new Tensor(precision, _outputLength, _inputLength);
         setRandomWeights();
     }
 
-    public double[] fullyConnectedLayerPass(double[] input){
+    private FullyConnectedLayer() {
+        //used by readSettings, which sets all the fields itself
+    }
+
+    private FullyConnectedLayer(FullyConnectedLayer original, Tensor weights) {
+        this._inputLength = original._inputLength;
+        this._outputLength = original._outputLength;
+        this.SEED = original.SEED;
+        this.learningRate = original.learningRate;
+        this.isLast = original.isLast;
+        this._precision = weights.precision();
+
+        _weights = weights;
+    }
+
+    @Override
+    public void allocateWorkspace() {
+        lastNets = new double[_outputLength];
+        _floatNets = new float[_outputLength];
+        _outputs = new double[_outputLength];
+        _output = getPrecision() == Precision.DOUBLE ? new Tensor(_outputs, 0, _outputLength) : new Tensor(Precision.FLOAT, _outputLength);
+        _dLdZ = new double[_outputLength];
+        _floatdLdZ = new float[_outputLength];
+        _dLdX = new Tensor(getPrecision(), _inputLength);
+    }
+
+    /**
+     * Passes the input through this layer and saves the input and the nets for backpropagation.
+     * @param input input of any shape, elements are used in the row-major order
+     * @return vector of this layer's outputs
+     */
+    public Tensor fullyConnectedLayerPass(Tensor input){
 
         lastInput = input;
 
-        double[] outNets = new double[_outputLength];
-        double[] outStep = new double[_outputLength];
+        nets(input, lastNets, _floatNets);
 
-        for(int i = 0; i < _inputLength; i++){
+        activate(lastNets, _outputs);
+        if(getPrecision() == Precision.FLOAT){
+            for(int i = 0; i < _outputLength; i++){
+                _output.set(i, _outputs[i]);
+            }
+        }
+
+        return _output;
+
+    }
+
+    /**
+     * Computes the nets of this layer into outNets.
+     * @param input input of this layer
+     * @param outNets array for the nets
+     * @param floatNets array for the nets while they are computed in float precision
+     */
+    private void nets(Tensor input, double[] outNets, float[] floatNets){
+        if(getPrecision() == Precision.DOUBLE){
+            nets(input.data(), input.offset(), _weights.data(), outNets);
+        } else {
+            nets(input.floatData(), input.offset(), _weights.floatData(), floatNets);
             for(int j = 0; j < _outputLength; j++){
-                outNets[j] += input[i]*_weights[i][j];
+                outNets[j] = floatNets[j];
             }
         }
+    }
+
+    private void nets(double[] input, int offset, double[] weights, double[] outNets){
+        //weights times the input vector, the net of every neuron is the dot product of its row of weights and the input
+        for(int j = 0; j < _outputLength; j++){
+            outNets[j] = dot(_inputLength, weights, j*_inputLength, input, offset);
+        }
+    }
 
-        lastNets = outNets;
+    private void nets(float[] input, int offset, float[] weights, float[] outNets){
+        //weights times the input vector, the net of every neuron is the dot product of its row of weights and the input
+        for(int j = 0; j < _outputLength; j++){
+            outNets[j] = dot(_inputLength, weights, j*_inputLength, input, offset);
+        }
+    }
 
+    /**
+     * Applies the activation function to the nets, ReLu for the hidden layers and soft max for the last one.
+     * @param outNets nets of this layer
+     * @param outStep array for the outputs
+     */
+    private void activate(double[] outNets, double[] outStep){
         if(!isLast){
             for(int i = 0; i < _outputLength; i++){
                 outStep[i] = reLu(outNets[i]);
             }
         }else{
-            outStep = softMax(outNets);
+            softMax(outNets, outStep);
         }
-
-
-
-        return outStep;
-
     }
 
     @Override
-    public double[] getOutput(List<double[][]> input) {
-        double[] vector = matrixToVector(input);
-        return getOutput(vector);
-    }
-
-    @Override
-    public double[] getOutput(double[] input) {
-        double[] forwardPassOutput = fullyConnectedLayerPass(input);
+    public Tensor getOutput(Tensor input) {
+        Tensor forwardPassOutput = fullyConnectedLayerPass(input);
 
         if(_nextLayer != null) {
             return _nextLayer.getOutput(forwardPassOutput);
@@ -75,60 +180,222 @@ public class FullyConnectedLayer extends Layer{
         }
     }
 
+    @Override
+    public Tensor forward(Tensor input) {
+        //new arrays instead of the workspace, so this can run from many threads
+        double[] outNets = new double[_outputLength];
+        nets(input, outNets, new float[_outputLength]);
+
+        double[] outStep = new double[_outputLength];
+        activate(outNets, outStep);
+
+        return new Tensor(outStep, 0, _outputLength).toPrecision(getPrecision());
+    }
 
     @Override
-    public void backPropagation(List<double[][]> dLdO) {
-        double[] vector = matrixToVector(dLdO);
-        backPropagation(vector);
+    public Tensor forwardBatch(Tensor inputs) {
+        int batchSize = inputs.dim(0);
+
+        /*Nets of the whole batch in one multiplication, [batch, in] * [out, in]^T. Every net
+        * is the same dot product forward computes, so the outputs are exactly the same.*/
+        Tensor nets = new Tensor(getPrecision(), batchSize, _outputLength);
+        matmul(inputs.reshape(batchSize, _inputLength), false, _weights, true, nets);
+
+        double[] outNets = new double[_outputLength];
+        double[] outStep = new double[_outputLength];
+        Tensor outputs = new Tensor(getPrecision(), batchSize, _outputLength);
+        for(int b = 0; b < batchSize; b++){
+            for(int j = 0; j < _outputLength; j++){
+                outNets[j] = nets.get(b, j);
+            }
+            activate(outNets, outStep);
+            for(int j = 0; j < _outputLength; j++){
+                outputs.set(b, j, outStep[j]);
+            }
+        }
+        return outputs;
     }
 
     /**
      * Standard formula used for adjusting weights is at 13:35 in:
      * <a href="https://www.youtube.com/watch?v=JJUlkPFq1q8">...</a>
      * Formula for   is at 23:17.
-     * Every weight in this layer is subtracted
-     * by the dL/dw calculated using the formula.
+     * dL/dw calculated using the formula is added to the gradient of every weight,
+     * and the weights are changed only when applyGradients is called.
      * @param dLdO loss from the next layer (in fact the layer before in the
      * backpropagation process).
      */
     @Override
-    public void backPropagation(double[] dLdO) {
+    public void backPropagation(Tensor dLdO) {
 
-        double[] dLdX = new double[_inputLength];   //result to be passed to the previous layer
+        if(_weightGradients == null){
+            _weightGradients = new Tensor(getPrecision(), _outputLength, _inputLength);
+        }
 
-        double dOdZ;
-        double dZdw;
-        double dLdw;
+        /*dL/dO * dO/dZ is the same for every input k, so it is computed once for every output j.
+        * dZ/dw is the input k, and dZ/dX is the weight between k and j.*/
+        double[] dLdZ = _dLdZ;
+        for(int j=0; j < _outputLength; j++) {
+            double dOdZ;
+            if(!isLast){
+                dOdZ = derivativeReLu(lastNets[j]);
+            }else {
+                dOdZ = lastNets[j];
+            }
+            dLdZ[j] = dLdO.get(j) * dOdZ;
+        }
 
-        double dZdX;
+        Tensor dLdX = _dLdX;   //result to be passed to the previous layer
 
-        for(int k=0; k < _inputLength; k++) {
-            double dLdX_sum = 0;
+        if(getPrecision() == Precision.DOUBLE){
+            backPropagation(dLdZ, lastInput.data(), lastInput.offset(), _weights.data(), _weightGradients.data(), dLdX.data());
+        } else {
+            float[] floatdLdZ = _floatdLdZ;
             for(int j=0; j < _outputLength; j++) {
+                floatdLdZ[j] = (float) dLdZ[j];
+            }
+            backPropagation(floatdLdZ, lastInput.floatData(), lastInput.offset(), _weights.floatData(), _weightGradients.floatData(), dLdX.floatData());
+        }
+
+        if(_previousLayer != null){
+            _previousLayer.backPropagation(dLdX);
+        }
+
+    }
+
+    private void backPropagation(double[] dLdZ, double[] input, int inputOffset, double[] weights, double[] gradients, double[] dLdX) {
+        /*dL/dw of the row of neuron j is dL/dZ[j] times the input (a rank-1 update of the
+        * gradients), and dL/dX is the sum of the rows of weights multiplied by dL/dZ.
+        * Both go through the rows in order, the same way the forward pass does.*/
+        Arrays.fill(dLdX, 0);
+        for(int j=0; j < _outputLength; j++) {
+            axpy(_inputLength, dLdZ[j], input, inputOffset, gradients, j*_inputLength);
+            axpy(_inputLength, dLdZ[j], weights, j*_inputLength, dLdX, 0);
+        }
+    }
+
+    private void backPropagation(float[] dLdZ, float[] input, int inputOffset, float[] weights, float[] gradients, float[] dLdX) {
+        /*dL/dw of the row of neuron j is dL/dZ[j] times the input (a rank-1 update of the
+        * gradients), and dL/dX is the sum of the rows of weights multiplied by dL/dZ.
+        * Both go through the rows in order, the same way the forward pass does.*/
+        Arrays.fill(dLdX, 0);
+        for(int j=0; j < _outputLength; j++) {
+            axpy(_inputLength, dLdZ[j], input, inputOffset, gradients, j*_inputLength);
+            axpy(_inputLength, dLdZ[j], weights, j*_inputLength, dLdX, 0);
+        }
+    }
 
-                if(!isLast){
-                    dOdZ = derivativeReLu(lastNets[j]);
-                }else {
-                    dOdZ = lastNets[j];
-                }
+    @Override
+    public void applyGradients(int batchSize) {
+        if(_weightGradients == null){
+            return;     //nothing was accumulated yet
+        }
 
-                dZdw = lastInput[k];
-                dZdX = _weights[k][j];
+        axpy(-learningRate / batchSize, _weightGradients, _weights);
+        _weightGradients.fill(0);
+    }
 
-                dLdw = dLdO[j] * dOdZ * dZdw;
+    @Override
+    public Layer replicate() {
+        return new FullyConnectedLayer(this, _weights);
+    }
 
-                _weights[k][j] -= dLdw * learningRate;
+    @Override
+    public Layer copy(Precision precision) {
+        Tensor weights = precision == getPrecision() ? _weights.copy() : _weights.toPrecision(precision);
+        return new FullyConnectedLayer(this, weights);
+    }
 
-                dLdX_sum += dLdO[j] * dOdZ * dZdX;
+    @Override
+    public void mergeGradients(Layer replica) {
+        Tensor replicaGradients = ((FullyConnectedLayer) replica)._weightGradients;
+        if(replicaGradients == null){
+            return;     //replica did not train on anything yet
+        }
+
+        if(_weightGradients == null){
+            _weightGradients = new Tensor(getPrecision(), _outputLength, _inputLength);
+        }
 
+        addInto(_weightGradients, replicaGradients, _weightGradients);
+        replicaGradients.fill(0);
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        double[][] weights = new double[_inputLength][_outputLength];
+        for(int i = 0; i < _inputLength; i++){
+            for(int j = 0; j < _outputLength; j++){
+                weights[i][j] = _weights.get(j, i);
             }
-            dLdX[k] = dLdX_sum;
         }
 
-        if(_previousLayer != null){
-            _previousLayer.backPropagation(dLdX);
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("SEED", SEED);
+        fields.put("isLast", isLast);
+        fields.put("_weights", weights);
+        fields.put("_inputLength", _inputLength);
+        fields.put("_outputLength", _outputLength);
+        fields.put("learningRate", learningRate);
+        out.writeFields();
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        SEED = fields.get("SEED", 0L);
+        isLast = fields.get("isLast", false);
+        _inputLength = fields.get("_inputLength", 0);
+        _outputLength = fields.get("_outputLength", 0);
+        learningRate = fields.get("learningRate", 0.0);
+
+        double[][] weights = (double[][]) fields.get("_weights", null);
+        _weights = new Tensor(getPrecision(), _outputLength, _inputLength);
+        for(int i = 0; i < _inputLength; i++){
+            for(int j = 0; j < _outputLength; j++){
+                _weights.set(j, i, weights[i][j]);
+            }
         }
+    }
 
+    @Override
+    public void writeSettings(ByteBuffer out) {
+        out.putInt(_inputLength);
+        out.putInt(_outputLength);
+        out.put((byte) (isLast ? 1 : 0));
+        out.putDouble(learningRate);
+        out.putLong(SEED);
+    }
+
+    /**
+     * Creates a layer from the settings written by writeSettings. The weights are
+     * all zeros, they are read separately into weights().
+     * @param in little-endian buffer to read from
+     * @param precision precision of the layer
+     * @return new layer
+     */
+    public static FullyConnectedLayer readSettings(ByteBuffer in, Precision precision) {
+        FullyConnectedLayer layer = new FullyConnectedLayer();
+        layer._inputLength = in.getInt();
+        layer._outputLength = in.getInt();
+        layer.isLast = in.get() != 0;
+        layer.learningRate = in.getDouble();
+        layer.SEED = in.getLong();
+        layer._precision = precision;
+        layer._weights = new Tensor(precision, layer._outputLength, layer._inputLength);
+        return layer;
+    }
+
+    @Override
+    public Tensor weights() {
+        return _weights;
+    }
+
+    /**
+     * @return true if this layer applies soft max instead of ReLu, so its outputs are probabilities
+     */
+    public boolean isLast() {
+        return isLast;
     }
 
     @Override
@@ -161,12 +428,23 @@ public class FullyConnectedLayer extends Layer{
 
         for(int i = 0; i <_inputLength; i++){
             for(int j = 0; j < _outputLength; j++){
-                _weights[i][j] = random.nextGaussian();
+                _weights.set(j, i, random.nextGaussian());
             }
         }
     }
 
     public double[] softMax(double[] inputs) {
+        double[] softmax = new double[inputs.length];
+        softMax(inputs, softmax);
+        return softmax;
+    }
+
+    /**
+     * Soft max of the inputs written into the given array, without allocating anything.
+     * @param inputs nets to apply the soft max to
+     * @param softmax array of the same length for the results
+     */
+    public void softMax(double[] inputs, double[] softmax) {
         double max = Double.NEGATIVE_INFINITY;
         for (double input : inputs) {
             if (input > max) {
@@ -175,18 +453,14 @@ public class FullyConnectedLayer extends Layer{
         }
 
         double sum = 0.0;
-        double[] expValues = new double[inputs.length];
         for (int i = 0; i < inputs.length; i++) {
-            expValues[i] = Math.exp(inputs[i] - max); // Subtract max to avoid overflow
-            sum += expValues[i];
+            softmax[i] = Math.exp(inputs[i] - max); // Subtract max to avoid overflow
+            sum += softmax[i];
         }
 
-        double[] softmax = new double[inputs.length];
         for (int i = 0; i < inputs.length; i++) {
-            softmax[i] = expValues[i] / sum;
+            softmax[i] = softmax[i] / sum;
         }
-
-        return softmax;
     }
 
 
@@ -1,9 +1,11 @@
 package layers;
 
+import data.Precision;
+import data.Tensor;
+
 import java.io.Serial;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 public abstract class Layer implements Serializable {
 
@@ -13,11 +15,118 @@ public abstract class Layer implements Serializable {
     protected Layer _nextLayer;
     protected Layer _previousLayer;
 
-    public abstract double[] getOutput(List<double[][]> input); //for different CNN layers
-    public abstract double[] getOutput(double[] input); //for fully-connected layers
+    protected Precision _precision;     //precision of the weights and of the Tensors this layer outputs
+
+    /**
+     * Allocates the buffers this layer reuses in getOutput and backPropagation, so training
+     * does not allocate anything per image. Called by NeuralNetwork when it is built or loaded,
+     * before the first getOutput. Layers that are only used through forward do not need it.
+     */
+    public abstract void allocateWorkspace();
+
+    /**
+     * Computes the output of this layer, saves what is needed for backpropagation and
+     * passes the output to the next layer.
+     * Outputs are written into the layer's workspace, so the returned Tensor is only valid
+     * until the next call.
+     * @param input input of this layer, any shape with the right number of elements
+     * @return output of the last layer in the network
+     */
+    public abstract Tensor getOutput(Tensor input);
+
+    /**
+     * Computes the output of this layer only, without passing it to the next layer.
+     * Unlike getOutput, this method does not save anything into the layer, so it can
+     * be called from many threads at the same time.
+     * @param input input of this layer, any shape with the right number of elements
+     * @return output of this layer
+     */
+    public abstract Tensor forward(Tensor input);
+
+    /**
+     * Computes the outputs of this layer for a whole batch of inputs at once, without passing
+     * them to the next layer. Like forward, this does not save anything into the layer.
+     * This version goes through the inputs one by one, layers that can do the whole batch
+     * together (as one matrix multiplication) override it.
+     * @param inputs contiguous Tensor whose first dimension is the batch, every element of it is one input
+     * @return Tensor of shape [batch size, getOutputElements()], outputs in the same order as the inputs
+     */
+    public Tensor forwardBatch(Tensor inputs) {
+        int batchSize = inputs.dim(0);
+        Tensor samples = inputs.reshape(batchSize, inputs.size()/batchSize);
+
+        Tensor outputs = new Tensor(getPrecision(), batchSize, getOutputElements());
+        for(int b=0; b<batchSize; b++){
+            forward(samples.slice(b)).copyTo(outputs.slice(b));
+        }
+        return outputs;
+    }
+
+    /**
+     * Computes the loss for the input of this layer and passes it to the previous layer.
+     * The loss passed to the previous layer is written into the workspace of this layer.
+     * @param dLdO loss for the output of this layer, any shape with getOutputElements() elements
+     */
+    public abstract void backPropagation(Tensor dLdO);
+
+    /**
+     * Updates the parameters of this layer with the gradients accumulated through
+     * backPropagation since the last update, and clears the accumulated gradients.
+     * Gradients are averaged over the batch, so the learning rate keeps the same meaning
+     * for every batch size.
+     * @param batchSize number of images whose gradients were accumulated
+     */
+    public abstract void applyGradients(int batchSize);
+
+    /**
+     * Creates a replica of this layer for training on another thread. The replica shares
+     * the weights of this layer, but it has its own state from the last forward pass and
+     * its own gradient sums, so replicas can run forward passes and backpropagation at the
+     * same time. The replica is not linked to any other layer.
+     * @return new layer that shares the weights of this layer
+     */
+    public abstract Layer replicate();
+
+    /**
+     * Adds the gradients accumulated in the given replica to the gradients of this layer,
+     * and clears them in the replica.
+     * @param replica layer created by calling replicate() on this layer
+     */
+    public abstract void mergeGradients(Layer replica);
+
+    /**
+     * Creates an independent copy of this layer with the same weights as this layer has now.
+     * The copy is not linked to any other layer and later training does not change it.
+     * @return new layer with a copy of the weights
+     */
+    public Layer copy() {
+        return copy(getPrecision());
+    }
 
-    public abstract void backPropagation(List<double[][]> dLdO);
-    public abstract void backPropagation(double[] dLdO);
+    /**
+     * Creates an independent copy of this layer with the weights converted to the given precision.
+     * The copy is not linked to any other layer and later training does not change it.
+     * @param precision precision of the copy
+     * @return new layer with a converted copy of the weights
+     */
+    public abstract Layer copy(Precision precision);
+
+    /**
+     * Writes everything needed to create this layer again, except the weights, for the
+     * binary model format (see network.ModelFile). Layers read it back in their readSettings.
+     * @param out little-endian buffer to write into
+     */
+    public abstract void writeSettings(ByteBuffer out);
+
+    /**
+     * @return Tensor with the weights of this layer, shared with the layer, or null
+     * if the layer has no weights
+     */
+    public abstract Tensor weights();
+
+    public Precision getPrecision() {
+        return _precision != null ? _precision : Precision.DOUBLE;   //layers saved before precision was introduced are double
+    }
 
     public abstract int getOutputLength();
     public abstract int getOutputRows();
@@ -40,49 +149,4 @@ public abstract class Layer implements Serializable {
         this._previousLayer = _previousLayer;
     }
 
-    public double[] matrixToVector(List<double[][]> input){
-
-        int length = input.size();
-        int rows = input.get(0).length;
-        int cols = input.get(0)[0].length;
-
-        double[] vector = new double[length*rows*cols];
-
-        int i = 0;
-        for(int l=0; l<length; l++){
-            for(int r=0; r<rows; r++){
-                for(int c=0; c<cols; c++){
-                    vector[i] = input.get(l)[r][c];
-                    i++;
-                }
-            }
-        }
-
-        return vector;
-
-    }
-
-    public List<double[][]> vectorToMatrix(double[] input, int length, int rows, int cols){
-
-        List<double[][]> out = new ArrayList<>();
-
-        int i = 0;
-        for(int l=0; l<length; l++){
-
-            double[][] matrix = new double[rows][cols];
-
-            for(int r=0; r<rows; r++){
-                for(int c=0; c<cols; c++){
-                    matrix[r][c] = input[i];
-                    i++;
-                }
-            }
-
-            out.add(matrix);
-        }
-
-        return out;
-
-    }
-
 }
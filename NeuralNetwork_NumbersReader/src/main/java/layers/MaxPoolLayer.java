@@ -1,10 +1,16 @@
 package layers;
 
-import java.util.ArrayList;
-import java.util.List;
+import data.Precision;
+import data.Tensor;
+
+import java.io.Serial;
+import java.nio.ByteBuffer;
 
 public class MaxPoolLayer extends Layer {
 
+    @Serial
+    private static final long serialVersionUID = -232934799279175226L;
+
     private int _stepSize;
     private int _windowSize;
 
@@ -12,82 +18,155 @@ public class MaxPoolLayer extends Layer {
     private int _inputRows;
     private int _inputCols;
 
-    List<int[][]> _lastMaxRow;  // list of matrices that save the information where the maximum values from the input were. (rows)
-    List<int[][]> _lastMaxCol;  // -||- (columns)
+    /*For every element of the last output, the position of the maximum in its input matrix
+    * (row * _inputCols + column), or -1 if no maximum was found at that position.*/
+    private transient int[] _lastMaxIndex;
+
+    /*Workspace, allocated once in allocateWorkspace and reused for every image.*/
+    private transient Tensor _output;
+    private transient Tensor _dLdX;     //loss passed to the previous layer
 
     public MaxPoolLayer(int _stepSize, int _windowSize, int _inputLength, int _inputRows, int _inputCols) {
+        this(_stepSize, _windowSize, _inputLength, _inputRows, _inputCols, Precision.DOUBLE);
+    }
+
+    public MaxPoolLayer(int _stepSize, int _windowSize, int _inputLength, int _inputRows, int _inputCols, Precision precision) {
         this._stepSize = _stepSize;
         this._windowSize = _windowSize;
         this._inputLength = _inputLength;
         this._inputRows = _inputRows;
         this._inputCols = _inputCols;
+        this._precision = precision;
     }
 
-    public List<double[][]> maxPoolLayerForwardPass(List<double[][]> input){
+    @Override
+    public void allocateWorkspace() {
+        _lastMaxIndex = new int[getOutputElements()];
+        _output = new Tensor(getPrecision(), getOutputLength(), getOutputRows(), getOutputCols());
+        _dLdX = new Tensor(getPrecision(), _inputLength, _inputRows, _inputCols);
+    }
 
-        List<double[][]> output = new ArrayList<>();
+    public Tensor maxPoolLayerForwardPass(Tensor input){
 
-        _lastMaxRow = new ArrayList<>();
-        _lastMaxCol = new ArrayList<>();
+        poolAll(input, _output, _lastMaxIndex);
 
-        for(int l=0; l<input.size(); l++){
-            output.add(pool(input.get(l)));
-        }
+        return _output;
 
-        return output;
+    }
+
+    private void poolAll(Tensor input, Tensor output, int[] maxIndex){
+
+        for(int l=0; l<_inputLength; l++){
+            pool(input, l, output, maxIndex);
+        }
 
     }
 
-    public double[][] pool(double[][] input){
+    /**
+     * Pools the l-th input matrix into the l-th output matrix and saves the positions
+     * of the found maximums.
+     * @param input contiguous Tensor with _inputLength matrices of _inputRows x _inputCols
+     * @param l index of the matrix to pool
+     * @param output Tensor of shape [getOutputLength(), getOutputRows(), getOutputCols()]
+     * @param maxIndex array with a position for every element of the output
+     */
+    public void pool(Tensor input, int l, Tensor output, int[] maxIndex){
 
-        double[][] output = new double[getOutputRows()][getOutputCols()];
+        int inOffset = input.offset() + l*_inputRows*_inputCols;
+        int outOffset = l*getOutputRows()*getOutputCols();
 
-        int[][] maxRows = new int[getOutputRows()][getOutputCols()];
-        int[][] maxCols = new int[getOutputRows()][getOutputCols()];
+        if(input.precision() == Precision.DOUBLE){
+            pool(input.data(), inOffset, output.data(), output.offset(), outOffset, maxIndex);
+        } else {
+            pool(input.floatData(), inOffset, output.floatData(), output.offset(), outOffset, maxIndex);
+        }
+    }
 
+    private void pool(double[] in, int inOffset, double[] out, int outArrayOffset, int outOffset, int[] maxIndex){
 
         for(int r=0; r<getOutputRows(); r += _stepSize){
             for(int c=0; c<getOutputCols(); c += _stepSize) {
 
                 double max = 0;
 
-                maxRows[r][c] = -1; //-1 means no maximum was found at that position
-                maxCols[r][c] = -1;
+                int o = outOffset + r*getOutputCols() + c;
+                maxIndex[o] = -1; //-1 means no maximum was found at that position
 
                 for(int x=0; x<_windowSize; x++) {
                     for(int y=0; y<_windowSize; y++) {
-                        if(input[r+x][c+y] > max) {
-                            max = input[r+x][c+y];
+                        int i = (r+x)*_inputCols + c+y;
+                        if(in[inOffset + i] > max) {
+                            max = in[inOffset + i];
 
-                            maxRows[r][c] = r+x;    //so the row of the maximum that lays at [r][c] in the output was r+x
-                            maxCols[r][c] = c+y;    //so the column of the maximum that lays at [r][c] in the output was c+y
+                            maxIndex[o] = i;    //so the maximum that lays at [r][c] in the output was at [r+x][c+y] in the input
                         }
                     }
                 }
 
-                output[r][c] = max;
+                out[outArrayOffset + o] = max;
 
             }
         }
+    }
 
-        _lastMaxRow.add(maxRows);
-        _lastMaxCol.add(maxCols);
+    /**
+     * Float version of pool.
+     */
+    private void pool(float[] in, int inOffset, float[] out, int outArrayOffset, int outOffset, int[] maxIndex){
 
-        return output;
+        for(int r=0; r<getOutputRows(); r += _stepSize){
+            for(int c=0; c<getOutputCols(); c += _stepSize) {
+
+                float max = 0;
+
+                int o = outOffset + r*getOutputCols() + c;
+                maxIndex[o] = -1; //-1 means no maximum was found at that position
+
+                for(int x=0; x<_windowSize; x++) {
+                    for(int y=0; y<_windowSize; y++) {
+                        int i = (r+x)*_inputCols + c+y;
+                        if(in[inOffset + i] > max) {
+                            max = in[inOffset + i];
+
+                            maxIndex[o] = i;    //so the maximum that lays at [r][c] in the output was at [r+x][c+y] in the input
+                        }
+                    }
+                }
+
+                out[outArrayOffset + o] = max;
+
+            }
+        }
     }
 
 
     @Override
-    public double[] getOutput(List<double[][]> input) {
-        List<double[][]> poolLayerOutput = maxPoolLayerForwardPass(input);
+    public Tensor getOutput(Tensor input) {
+        Tensor poolLayerOutput = maxPoolLayerForwardPass(input);
 
         return _nextLayer.getOutput(poolLayerOutput);  //pool layer is never the last layer so no need to check if there is a next layer.
     }
 
     @Override
-    public double[] getOutput(double[] input) {
-        List<double[][]> matrixList = vectorToMatrix(input, _inputLength, _inputRows, _inputCols);
-        return _nextLayer.getOutput(matrixList);
+    public Tensor forward(Tensor input) {
+        //positions of the maximums are only needed for backpropagation, so they are thrown away
+        Tensor output = new Tensor(getPrecision(), getOutputLength(), getOutputRows(), getOutputCols());
+        poolAll(input, output, new int[getOutputElements()]);
+        return output;
+    }
+
+    @Override
+    public Tensor forwardBatch(Tensor inputs) {
+        int batchSize = inputs.dim(0);
+        Tensor samples = inputs.reshape(batchSize, _inputLength*_inputRows*_inputCols);
+
+        //every input is pooled straight into its row of the outputs, positions of the maximums are thrown away
+        Tensor outputs = new Tensor(getPrecision(), batchSize, getOutputElements());
+        int[] maxIndex = new int[getOutputElements()];
+        for(int b=0; b<batchSize; b++){
+            poolAll(samples.slice(b), outputs.slice(b), maxIndex);
+        }
+        return outputs;
     }
 
     /**
@@ -96,38 +175,100 @@ public class MaxPoolLayer extends Layer {
      * @param dLdO
      */
     @Override
-    public void backPropagation(List<double[][]> dLdO) {
+    public void backPropagation(Tensor dLdO) {
+
+        Tensor dLdX = _dLdX;  //error matrices that are computed through this layer in backpropagation. To pass to the next backpropagation layer.
+        dLdX.fill(0);
+
+        if(getPrecision() == Precision.DOUBLE){
+            backPropagation(dLdO.data(), dLdO.offset(), dLdX.data());
+        } else {
+            backPropagation(dLdO.floatData(), dLdO.offset(), dLdX.floatData());
+        }
 
-        List<double[][]> dLdX = new ArrayList<>();  //list of error matrices that are computed through this layer in backpropagation. To pass to the next backpropagation layer.
+        if(_previousLayer != null){
+            _previousLayer.backPropagation(dLdX);
+        }
 
-        int l=0;
-        for(var passedMatrix: dLdO){
-            double[][] errorMatrix = new double[_inputRows][_inputCols];
+    }
 
-            for(int r=0; r<getOutputRows(); r++){
-                for(int c=0; c<getOutputCols(); c++){
-                    int max_r = _lastMaxRow.get(l)[r][c];
-                    int max_c = _lastMaxCol.get(l)[r][c];
+    private void backPropagation(double[] loss, int lossOffset, double[] dLdX){
+        int outputElements = getOutputRows()*getOutputCols();
+        int inputElements = _inputRows*_inputCols;
 
-                    if(max_r != -1){
-                        errorMatrix[max_r][max_c] += passedMatrix[r][c];    //adding the error from upper layer to this layers error matrix at the positions where the pool maximums were.
-                    }
+        for(int l=0; l<_inputLength; l++){
+            for(int o=0; o<outputElements; o++){
+                int max = _lastMaxIndex[l*outputElements + o];
+
+                if(max != -1){
+                    //adding the error from upper layer to this layers error matrix at the positions where the pool maximums were.
+                    dLdX[l*inputElements + max] += loss[lossOffset + l*outputElements + o];
                 }
             }
-            dLdX.add(errorMatrix);
-            l++;
         }
+    }
 
-        if(_previousLayer != null){
-            _previousLayer.backPropagation(dLdX);
+    /**
+     * Float version of backPropagation.
+     */
+    private void backPropagation(float[] loss, int lossOffset, float[] dLdX){
+        int outputElements = getOutputRows()*getOutputCols();
+        int inputElements = _inputRows*_inputCols;
+
+        for(int l=0; l<_inputLength; l++){
+            for(int o=0; o<outputElements; o++){
+                int max = _lastMaxIndex[l*outputElements + o];
+
+                if(max != -1){
+                    //adding the error from upper layer to this layers error matrix at the positions where the pool maximums were.
+                    dLdX[l*inputElements + max] += loss[lossOffset + l*outputElements + o];
+                }
+            }
         }
+    }
+
+    @Override
+    public void applyGradients(int batchSize) {
+        //max pool layer has no parameters to learn
+    }
 
+    @Override
+    public Layer replicate() {
+        return new MaxPoolLayer(_stepSize, _windowSize, _inputLength, _inputRows, _inputCols, getPrecision());
+    }
+
+    @Override
+    public void mergeGradients(Layer replica) {
+        //max pool layer has no parameters to learn
+    }
+
+    @Override
+    public Layer copy(Precision precision) {
+        return new MaxPoolLayer(_stepSize, _windowSize, _inputLength, _inputRows, _inputCols, precision);
+    }
+
+    @Override
+    public void writeSettings(ByteBuffer out) {
+        out.putInt(_stepSize);
+        out.putInt(_windowSize);
+        out.putInt(_inputLength);
+        out.putInt(_inputRows);
+        out.putInt(_inputCols);
+    }
+
+    /**
+     * Creates a layer from the settings written by writeSettings.
+     * @param in little-endian buffer to read from
+     * @param precision precision of the layer
+     * @return new layer
+     */
+    public static MaxPoolLayer readSettings(ByteBuffer in, Precision precision) {
+        return new MaxPoolLayer(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt(), precision);
     }
 
     @Override
-    public void backPropagation(double[] dLdO) {
-        List<double[][]> matrixList = vectorToMatrix(dLdO, getOutputLength(), getOutputRows(), getOutputCols());
-        backPropagation(matrixList);
+    public Tensor weights() {
+        return null;    //max pool layer has no parameters to learn
     }
 
     @Override
@@ -0,0 +1,122 @@
+package network;
+
+import data.Image;
+import data.Tensor;
+import layers.FullyConnectedLayer;
+import layers.Layer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static data.MatrixUtility.getMaxIndex;
+
+/**
+ * Immutable, guess-only version of a NeuralNetwork, created by NeuralNetwork.compile().
+ * It holds its own copies of the layers and only uses Layer.forward on them, which does
+ * not save anything into the layers. That is why one CompiledNetwork can be shared
+ * between any number of threads that guess at the same time, without any locking.
+ */
+public final class CompiledNetwork {
+
+    private final List<Layer> _layers;
+    private final double scalingFactor;
+
+    CompiledNetwork(List<Layer> layers, double scalingFactor) {
+        List<Layer> copies = new ArrayList<>();
+        for(var layer: layers){
+            copies.add(layer.copy());
+        }
+
+        this._layers = List.copyOf(copies);
+        this.scalingFactor = scalingFactor;
+    }
+
+    /**
+     * Computes the output of the last layer for the given image.
+     * @param image image of the digit
+     * @return output of the network, one value for every digit
+     */
+    public double[] getOutput(Image image){
+        Tensor input = NeuralNetwork.inputTensor(image, scalingFactor, _layers.getFirst().getPrecision());
+        return NeuralNetwork.forward(_layers, input).toArray();
+    }
+
+    /**
+     * Computes how likely every digit is for the given image. If the last layer already
+     * applies soft max, this is the same as getOutput, otherwise soft max is applied to the output.
+     * @param image image of the digit
+     * @return probability of every digit, they sum up to 1
+     */
+    public double[] getProbabilities(Image image){
+        double[] output = getOutput(image);
+        if(_layers.getLast() instanceof FullyConnectedLayer last && !last.isLast()){
+            last.softMax(output, output);
+        }
+        return output;
+    }
+
+    public int guess(Image image){
+        return getMaxIndex(getOutput(image));
+    }
+
+    /**
+     * Computes the outputs of the last layer for all the given images with one pass through
+     * the network, see NeuralNetwork.guess(List).
+     * @param images images of the digits
+     * @return output of the network for every image, in the same order
+     */
+    public double[][] getOutputs(List<Image> images){
+        double[][] outputs = new double[images.size()][];
+        if(images.isEmpty()){
+            return outputs;
+        }
+
+        Tensor inputs = NeuralNetwork.inputBatch(images, scalingFactor, _layers.getFirst().getPrecision());
+        Tensor batchOutputs = NeuralNetwork.forwardBatch(_layers, inputs);
+        for(int b=0; b<outputs.length; b++){
+            outputs[b] = batchOutputs.slice(b).toArray();
+        }
+        return outputs;
+    }
+
+    /**
+     * Same as getProbabilities, for all the given images with one pass through the network.
+     * @param images images of the digits
+     * @return probability of every digit for every image, in the same order
+     */
+    public double[][] getProbabilities(List<Image> images){
+        double[][] outputs = getOutputs(images);
+        if(_layers.getLast() instanceof FullyConnectedLayer last && !last.isLast()){
+            for(var output: outputs){
+                last.softMax(output, output);
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Guesses the digits on all the given images with one pass through the network.
+     * @param images images of the digits
+     * @return guessed digit for every image, in the same order
+     */
+    public int[] guess(List<Image> images){
+        double[][] outputs = getOutputs(images);
+        int[] guesses = new int[outputs.length];
+        for(int b=0; b<outputs.length; b++){
+            guesses[b] = getMaxIndex(outputs[b]);
+        }
+        return guesses;
+    }
+
+    public double testAccuracy(List<Image> images){
+        int correct = 0;
+
+        for(var image: images){
+            if(guess(image) == image.getLabel()){
+                correct++;
+            }
+        }
+
+        return((double)correct/ images.size());
+    }
+}
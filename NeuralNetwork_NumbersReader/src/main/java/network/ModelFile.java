@@ -0,0 +1,270 @@
+package network;
+
+import data.Precision;
+import data.Tensor;
+import layers.ConvolutionLayer;
+import layers.FullyConnectedLayer;
+import layers.Layer;
+import layers.MaxPoolLayer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves and loads networks in a compact binary format that does not depend on how
+ * the layer classes look inside, unlike Java serialization.
+ * Everything is little-endian. The file starts with a header:
+ * <pre>
+ * bytes  "NNRM"
+ * int    version of the format
+ * byte   precision of the weights, 0 for DOUBLE and 1 for FLOAT
+ * double scaling factor
+ * int    batch size
+ * int    number of layers
+ * for every layer:
+ *   byte type of the layer (CONVOLUTION, MAX_POOL, FULLY_CONNECTED)
+ *   settings of the layer, written by Layer.writeSettings
+ *   int  number of weights of the layer
+ * </pre>
+ * After the header, padded to 8 bytes, come the weights of every layer in order, as raw
+ * numbers in the row-major order of the layer's weights() Tensor. Nothing from training
+ * (last inputs, gradients) is saved.
+ * Loading reads the file into one buffer with a single channel read and copies every block of
+ * weights straight into the layer's array. The file is not memory-mapped: the weights are copied anyway,
+ * and on Windows a mapping that is still open until the garbage collector frees it stops
+ * save from overwriting the same file.
+ */
+public final class ModelFile {
+
+    private static final byte[] MAGIC = {'N', 'N', 'R', 'M'};
+    private static final int VERSION = 1;
+
+    private static final byte CONVOLUTION = 1;
+    private static final byte MAX_POOL = 2;
+    private static final byte FULLY_CONNECTED = 3;
+
+    private static final int MAX_SETTINGS_BYTES = 64;  //more than the settings of any layer take
+
+    private ModelFile() {
+    }
+
+    /**
+     * Saves the network into the given file in the binary format.
+     * @param network network to save
+     * @param path file to save into, replaced if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(NeuralNetwork network, Path path) throws IOException {
+        List<Layer> layers = network._layers;
+        Precision precision = network.getPrecision();
+
+        ByteBuffer header = ByteBuffer.allocate(64 + layers.size()*MAX_SETTINGS_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.put((byte) precision.ordinal());
+        header.putDouble(network.scalingFactor);
+        header.putInt(network.getBatchSize());
+        header.putInt(layers.size());
+
+        long weightBytes = 0;
+        for(var layer: layers){
+            header.put(type(layer));
+            layer.writeSettings(header);
+
+            Tensor weights = layer.weights();
+            int count = weights == null ? 0 : weights.size();
+            header.putInt(count);
+            weightBytes += (long) count * bytes(precision);
+        }
+        header.position(align(header.position()));
+        header.flip();
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            channel.write(header);
+
+            ByteBuffer block = ByteBuffer.allocate((int) Math.min(weightBytes, 1 << 20)).order(ByteOrder.LITTLE_ENDIAN);
+            for(var layer: layers){
+                Tensor weights = layer.weights();
+                if(weights != null){
+                    writeWeights(channel, block, weights.toPrecision(precision));
+                }
+            }
+        }
+    }
+
+    private static void writeWeights(FileChannel channel, ByteBuffer block, Tensor weights) throws IOException {
+        //the weights may not fit into the block at once, so it is written and refilled as many times as needed
+        int elementBytes = bytes(weights.precision());
+        int written = 0;
+        while(written < weights.size()){
+            block.clear();
+            int count = Math.min(weights.size() - written, block.capacity() / elementBytes);
+            if(weights.precision() == Precision.DOUBLE){
+                block.asDoubleBuffer().put(weights.data(), weights.offset() + written, count);
+            } else {
+                block.asFloatBuffer().put(weights.floatData(), weights.offset() + written, count);
+            }
+            block.limit(count*elementBytes);
+            while(block.hasRemaining()){
+                channel.write(block);
+            }
+            written += count;
+        }
+    }
+
+    /**
+     * Loads a network saved by save. Networks saved with Java serialization (.ser files)
+     * are recognized by their first bytes and loaded the old way, so both kinds of files work.
+     * @param path file to load
+     * @return loaded network
+     * @throws IOException if the file cannot be read or is not a saved network
+     */
+    public static NeuralNetwork load(Path path) throws IOException {
+        ByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            //only the first bytes are read before it is known what kind of file it is
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            readFully(channel, magic);
+            magic.flip();
+            if(!hasMagic(magic)){
+                return loadSerialized(path);
+            }
+
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE){
+                throw new IOException("Model file " + path + " is too big: " + size + " bytes");
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            buffer.put(magic.rewind());
+            readFully(channel, buffer);
+            buffer.flip();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            return read(buffer);
+        } catch (RuntimeException e) {
+            //BufferUnderflowException and friends if the file is cut off or the header is wrong
+            throw new IOException("Corrupted model file " + path, e);
+        }
+    }
+
+    private static NeuralNetwork read(ByteBuffer buffer) throws IOException {
+        buffer.position(MAGIC.length);
+        int version = buffer.getInt();
+        if(version > VERSION){
+            throw new IOException("Model file version " + version + " is newer than the supported version " + VERSION);
+        }
+
+        Precision precision = Precision.values()[buffer.get()];
+        double scalingFactor = buffer.getDouble();
+        int batchSize = buffer.getInt();
+        int layerCount = buffer.getInt();
+
+        List<Layer> layers = new ArrayList<>();
+        for(int i = 0; i < layerCount; i++){
+            Layer layer = switch(buffer.get()) {
+                case CONVOLUTION -> ConvolutionLayer.readSettings(buffer, precision);
+                case MAX_POOL -> MaxPoolLayer.readSettings(buffer, precision);
+                case FULLY_CONNECTED -> FullyConnectedLayer.readSettings(buffer, precision);
+                default -> throw new IOException("Unknown type of layer " + i);
+            };
+
+            Tensor weights = layer.weights();
+            int count = buffer.getInt();
+            if(count != (weights == null ? 0 : weights.size())){
+                throw new IOException("Layer " + i + " should have " + (weights == null ? 0 : weights.size()) + " weights, file has " + count);
+            }
+            layers.add(layer);
+        }
+
+        int position = align(buffer.position());
+        for(var layer: layers){
+            Tensor weights = layer.weights();
+            if(weights == null){
+                continue;
+            }
+
+            ByteBuffer block = buffer.slice(position, weights.size()*bytes(precision)).order(ByteOrder.LITTLE_ENDIAN);
+            if(precision == Precision.DOUBLE){
+                block.asDoubleBuffer().get(weights.data(), weights.offset(), weights.size());
+            } else {
+                block.asFloatBuffer().get(weights.floatData(), weights.offset(), weights.size());
+            }
+            position += block.capacity();
+        }
+
+        NeuralNetwork network = new NeuralNetwork(layers, scalingFactor);
+        network.setBatchSize(batchSize);
+        return network;
+    }
+
+    private static NeuralNetwork loadSerialized(Path path) throws IOException {
+        try(ObjectInputStream ois = new ObjectInputStream(new FileInputStream(path.toFile()))) {
+            return (NeuralNetwork) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException(path + " is not a saved network", e);
+        }
+    }
+
+    /*Reads until the buffer is full or the file ends.*/
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                return;
+            }
+        }
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer) {
+        if(buffer.limit() < MAGIC.length){
+            return false;
+        }
+        for(int i = 0; i < MAGIC.length; i++){
+            if(buffer.get(i) != MAGIC[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte type(Layer layer) {
+        if(layer instanceof ConvolutionLayer){
+            return CONVOLUTION;
+        } else if(layer instanceof MaxPoolLayer){
+            return MAX_POOL;
+        } else if(layer instanceof FullyConnectedLayer){
+            return FULLY_CONNECTED;
+        }
+        throw new IllegalArgumentException("Unknown type of layer " + layer.getClass().getName());
+    }
+
+    private static int bytes(Precision precision) {
+        return precision == Precision.DOUBLE ? Double.BYTES : Float.BYTES;
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    /**
+     * Converts a network saved with Java serialization into the binary format.
+     * Usage: ModelFile input.ser output.nn
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2){
+            System.err.println("Usage: ModelFile <input .ser file> <output file>");
+            return;
+        }
+        save(load(Path.of(args[0])), Path.of(args[1]));
+    }
+}
@@ -0,0 +1,279 @@
+package network;
+
+import data.Precision;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps loaded and compiled networks in the memory, so a network file is read only once
+ * and not for every image that is read. Networks are kept by their path and the time
+ * the file was last modified, so a network is loaded again when its file changes.
+ * At most maxModels networks are kept, the one that was not used for the longest time is
+ * removed when a new one does not fit.
+ * A directory can also be used instead of a file. Then the newest network file in the
+ * directory is used, and the directory is watched, so a network saved there later is used
+ * as soon as it appears, without restarting anything. If the newest one is deleted, the newest
+ * of the others is used.
+ * All methods can be called from many threads. A network is loaded outside of the lock, so
+ * loading one does not stop the threads that get networks that are loaded already, and the
+ * threads that want the network that is being loaded wait for that one load.
+ */
+public final class ModelRegistry implements AutoCloseable {
+
+    private final Precision _precision;
+    private final int _maxModels;
+
+    private final Map<Path, Entry> _models;     //least recently used first
+    private final Map<Path, Path> _latest = new ConcurrentHashMap<>();     //watched directory -> newest network file in it
+
+    //those are guarded by _latest
+    private final Set<Path> _watched = new HashSet<>();
+    private WatchService _watcher;
+    private Thread _watchThread;
+    private boolean _closed = false;
+
+    //network is done when it is loaded, until then the threads that want it wait for it
+    private record Entry(FileTime modified, CompletableFuture<CompiledNetwork> network) {}
+
+    /**
+     * @param precision precision the networks are converted to after loading
+     * @param maxModels maximum number of networks kept at once
+     */
+    public ModelRegistry(Precision precision, int maxModels) {
+        if(maxModels < 1){
+            throw new IllegalArgumentException("Registry must keep at least 1 model, was " + maxModels);
+        }
+        this._precision = precision;
+        this._maxModels = maxModels;
+        this._models = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                return size() > _maxModels;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled network saved in the given file, loading it only if it is not
+     * kept already or the file was modified since it was loaded.
+     * If the path is a directory, the newest network in it is returned, see the class description.
+     * @param path network file saved by ModelFile (or a .ser file), or a directory with network files
+     * @return compiled network
+     * @throws IOException if the network cannot be loaded
+     */
+    public CompiledNetwork get(Path path) throws IOException {
+        Path file = path.toAbsolutePath().normalize();
+        FileTime modified;
+        if(Files.isDirectory(file)){
+            Path directory = file;
+            file = latest(directory);
+            try {
+                modified = Files.getLastModifiedTime(file);
+            } catch (NoSuchFileException e) {
+                //the newest network was deleted and the watcher did not notice it yet
+                file = rescan(directory);
+                modified = Files.getLastModifiedTime(file);
+            }
+        } else {
+            modified = Files.getLastModifiedTime(file);
+        }
+
+        CompletableFuture<CompiledNetwork> network;
+        boolean loading = false;
+        synchronized (_models) {
+            Entry entry = _models.get(file);
+            if(entry != null && entry.modified().equals(modified)){
+                network = entry.network();
+            } else {
+                network = new CompletableFuture<>();
+                _models.put(file, new Entry(modified, network));
+                loading = true;
+            }
+        }
+
+        if(loading){
+            try {
+                network.complete(load(file));
+            } catch (IOException | RuntimeException e) {
+                synchronized (_models) {
+                    _models.remove(file, new Entry(modified, network));    //the next call tries again
+                }
+                network.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return network.join();
+        } catch (CompletionException e) {
+            //another thread was loading it and failed
+            if(e.getCause() instanceof IOException cause){
+                throw new IOException("Could not load " + file + ": " + cause.getMessage(), cause);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of networks kept at the moment
+     */
+    public int size() {
+        synchronized (_models) {
+            return _models.size();
+        }
+    }
+
+    private CompiledNetwork load(Path file) throws IOException {
+        NeuralNetwork network = ModelFile.load(file);
+        if(network.getPrecision() != _precision){
+            network = network.convert(_precision);
+        }
+        return network.compile();
+    }
+
+    /**
+     * Finds the newest network file in the directory and starts watching the directory
+     * for new ones if it is not watched yet.
+     */
+    private Path latest(Path directory) throws IOException {
+        Path latest = _latest.get(directory);
+        if(latest != null){
+            return latest;
+        }
+
+        synchronized (_latest) {
+            if(!_watched.contains(directory)){
+                watch(directory);
+            }
+            latest = _latest.get(directory);
+            return latest != null ? latest : rescan(directory);
+        }
+    }
+
+    /**
+     * Looks for the newest network file in the directory again and remembers it.
+     * @throws IOException if there are no network files in the directory
+     */
+    private Path rescan(Path directory) throws IOException {
+        synchronized (_latest) {
+            Path newest = null;
+            FileTime newestModified = null;
+            try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, ModelRegistry::isModelFile)){
+                for(Path file: files){
+                    try {
+                        FileTime modified = Files.getLastModifiedTime(file);
+                        if(newest == null || modified.compareTo(newestModified) > 0){
+                            newest = file;
+                            newestModified = modified;
+                        }
+                    } catch (NoSuchFileException e) {
+                        //deleted while listing
+                    }
+                }
+            }
+            if(newest == null){
+                _latest.remove(directory);
+                throw new IOException("No network files in " + directory);
+            }
+            _latest.put(directory, newest);
+            return newest;
+        }
+    }
+
+    private void watch(Path directory) throws IOException {
+        if(_closed){
+            throw new IllegalStateException("Model registry is closed, it cannot watch " + directory);
+        }
+        if(_watcher == null){
+            _watcher = FileSystems.getDefault().newWatchService();
+            _watchThread = new Thread(this::watchLoop, "model-registry-watcher");
+            _watchThread.setDaemon(true);
+            _watchThread.start();
+        }
+        directory.register(_watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        _watched.add(directory);
+    }
+
+    /**
+     * Runs on the watcher thread. Every network file that is created or changed in a watched
+     * directory becomes the newest one of that directory, as soon as it can be loaded.
+     * A file that is still being written fails to load, and it is tried again on its next change.
+     * When the newest file is deleted, the directory is searched for the newest one again.
+     */
+    private void watchLoop() {
+        try {
+            while(true){
+                WatchKey key = _watcher.take();
+                Path directory = (Path) key.watchable();
+
+                for(WatchEvent<?> event: key.pollEvents()){
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+                        continue;
+                    }
+                    Path file = directory.resolve((Path) event.context());
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE){
+                        if(file.equals(_latest.get(directory))){
+                            try {
+                                rescan(directory);
+                            } catch (IOException e) {
+                                System.err.println("No network left in " + directory + ": " + e);
+                            }
+                        }
+                        continue;
+                    }
+                    if(!isModelFile(file)){
+                        continue;
+                    }
+
+                    try {
+                        get(file);  //loads it now, so the first image read with it does not wait
+                        _latest.put(directory, file);
+                    } catch (IOException e) {
+                        System.err.println("Could not load new network " + file + ": " + e);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //registry was closed
+        }
+    }
+
+    private static boolean isModelFile(Path file) {
+        String name = file.getFileName().toString();
+        return Files.isRegularFile(file) && (name.endsWith(".nn") || name.endsWith(".ser"));
+    }
+
+    /**
+     * Stops watching the directories. Networks that were already returned can still be used.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (_latest) {
+            _closed = true;
+            if(_watcher != null){
+                _watcher.close();
+                _watchThread.interrupt();
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package network;
 
+import data.Precision;
 import layers.ConvolutionLayer;
 import layers.FullyConnectedLayer;
 import layers.Layer;
@@ -20,48 +21,77 @@ public class NetworkBuilder {
     private int _inputRows;
     private int _inputCols;
     private double _scalingFactor;
+    private int _batchSize;
+    private Precision _precision;
     List<Layer> _layers;
 
     public NetworkBuilder(int _inputRows, int _inputCols, double scalingFactor) {
         this._inputRows = _inputRows;
         this._inputCols = _inputCols;
         this._scalingFactor = scalingFactor;
+        this._batchSize = 1;
+        this._precision = Precision.DOUBLE;
 
         _layers = new ArrayList<>();
     }
 
+    /**
+     * Sets the precision of the weights and the values passed between the layers.
+     * Default is DOUBLE. Must be called before any layer is added.
+     * @param precision precision of every layer in the network
+     */
+    public void setPrecision(Precision precision){
+        if(!_layers.isEmpty()){
+            throw new IllegalStateException("Precision must be set before adding layers");
+        }
+        this._precision = precision;
+    }
+
+    /**
+     * Sets the number of images after which the weights are updated during training.
+     * Default is 1, which updates the weights after every image.
+     * @param batchSize number of images in one training batch
+     */
+    public void setBatchSize(int batchSize){
+        if(batchSize < 1){
+            throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+        }
+        this._batchSize = batchSize;
+    }
+
     public void addConvolutionLayer(int numFilters, int filterSize, int stepSize, double learningRate, long SEED){
          if(_layers.isEmpty()){
              /*Input length is 1 because this layer is the first layer, and input is one image representation matrix.*/
-             _layers.add(new ConvolutionLayer(filterSize, stepSize, 1, _inputRows, _inputCols, SEED, numFilters, learningRate));
+             _layers.add(new ConvolutionLayer(filterSize, stepSize, 1, _inputRows, _inputCols, SEED, numFilters, learningRate, _precision));
          } else {
              Layer prev = _layers.getLast();
-             _layers.add(new ConvolutionLayer(filterSize, stepSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), SEED, numFilters, learningRate));
+             _layers.add(new ConvolutionLayer(filterSize, stepSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), SEED, numFilters, learningRate, _precision));
          }
     }
 
     public void addMaxPoolLayer(int windowSize, int stepSize){
         if(_layers.isEmpty()){
             /*Input length is 1 because this layer is the first layer, and input is one image representation matrix.*/
-            _layers.add(new MaxPoolLayer(stepSize, windowSize, 1, _inputRows, _inputCols));
+            _layers.add(new MaxPoolLayer(stepSize, windowSize, 1, _inputRows, _inputCols, _precision));
         } else {
             Layer prev = _layers.getLast();
-            _layers.add(new MaxPoolLayer(stepSize, windowSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols()));
+            _layers.add(new MaxPoolLayer(stepSize, windowSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), _precision));
         }
     }
 
     public void addFullyConnectedLayer(int outLength, double learningRate, long SEED, boolean isLast){
         if(_layers.isEmpty()){
             /*Input length is 1 because this layer is the first layer, and input is one image representation matrix.*/
-            _layers.add(new FullyConnectedLayer(_inputRows*_inputCols, outLength, SEED, learningRate, isLast));
+            _layers.add(new FullyConnectedLayer(_inputRows*_inputCols, outLength, SEED, learningRate, isLast, _precision));
         } else {
             Layer prev = _layers.getLast();
-            _layers.add(new FullyConnectedLayer(prev.getOutputElements(), outLength, SEED, learningRate, isLast));
+            _layers.add(new FullyConnectedLayer(prev.getOutputElements(), outLength, SEED, learningRate, isLast, _precision));
         }
     }
 
     public NeuralNetwork build() {
         network = new NeuralNetwork(_layers, _scalingFactor);
+        network.setBatchSize(_batchSize);
         return network;
     }
 
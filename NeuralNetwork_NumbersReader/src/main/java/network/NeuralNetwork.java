@@ -1,16 +1,17 @@
 package network;
 
 import data.Image;
-import data.MatrixUtility;
+import data.Precision;
+import data.Tensor;
 import layers.Layer;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serial;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
-import static data.MatrixUtility.add;
-import static data.MatrixUtility.multiply;
 import static data.MatrixUtility.getMaxIndex;
 
 public class NeuralNetwork implements Serializable {
@@ -26,10 +27,45 @@ public class NeuralNetwork implements Serializable {
     * anymore.*/
     double scalingFactor;
 
+    /*Number of images whose gradients are accumulated in the layers before
+    * the weights are updated. Updating once per batch instead of once per image
+    * saves a full pass over all the weights for every image.*/
+    int batchSize;
+
+    /*Workspace for training, so nothing is allocated per image.*/
+    private transient Tensor _input;    //input of the first layer, made when the first image comes
+    private transient Tensor _errors;   //dL/dO of the last layer
+
     public NeuralNetwork(List<Layer> _layers, double scalingFactor) {
         this._layers = _layers;
         this.scalingFactor = scalingFactor;
+        this.batchSize = 1;
         linkLayers();
+        allocateWorkspace();
+    }
+
+    private void allocateWorkspace(){
+        for(var layer: _layers){
+            layer.allocateWorkspace();
+        }
+        _errors = new Tensor(getPrecision(), _layers.getLast().getOutputElements());
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        allocateWorkspace();
+    }
+
+    public int getBatchSize() {
+        return batchSize > 0 ? batchSize : 1;   //networks saved before batches were introduced have 0
+    }
+
+    public void setBatchSize(int batchSize) {
+        if(batchSize < 1){
+            throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+        }
+        this.batchSize = batchSize;
     }
 
 
@@ -59,28 +95,156 @@ public class NeuralNetwork implements Serializable {
      * @param correctAnswer The correct class label represented as an integer.
      * @return The error vector between the network output and the expected output.
      */
-    public double[] getErrors(double[] networkOutput, int correctAnswer) {
-        int numClasses = networkOutput.length;
-
-        double[] expected = new double[numClasses];
+    public Tensor getErrors(Tensor networkOutput, int correctAnswer) {
+        Tensor errors = new Tensor(networkOutput.precision(), networkOutput.size());
+        getErrors(networkOutput, correctAnswer, errors);
+        return errors;
 
-        expected[correctAnswer] = 1;
+    }
 
-        return add(networkOutput, multiply(expected, -1));
+    /**
+     * Same as getErrors, but writes the errors into the given vector instead of a new one.
+     * @param errors vector with an element for every output of the network
+     */
+    void getErrors(Tensor networkOutput, int correctAnswer, Tensor errors) {
+        networkOutput.copyTo(errors);
 
+        errors.set(correctAnswer, errors.get(correctAnswer) - 1);     //expected output is 1 for the correct answer and 0 for the others
     }
 
 
+    /**
+     * Guesses the digit on the given image. Uses only Layer.forward, so nothing is saved
+     * into the layers and guessing can be done from many threads at the same time,
+     * as long as the network is not being trained.
+     * @param image image of the digit
+     * @return the guessed digit
+     */
     public int guess(Image image){
-        List<double[][]> inputList = new ArrayList<>(); //CNN works with list of matrices, so that is the input even tho it's one picture. Throughout the layers, List will be used.
-        inputList.add(multiply(image.getData(), 1.0/scalingFactor));
-
-        double[] networkOutput = _layers.getFirst().getOutput(inputList);
-        int guess = getMaxIndex(networkOutput);
+        Tensor networkOutput = forward(_layers, inputTensor(image, scalingFactor, getPrecision()));
+        int guess = getMaxIndex(networkOutput.toArray());
 
         return guess;
     }
 
+    /**
+     * Guesses the digits on all the given images with one pass through the network, every layer
+     * goes through the whole batch at once. Gives the same guesses as calling guess for every image,
+     * but a whole JMBAG costs about as much as one image.
+     * @param images images of the digits
+     * @return guessed digit for every image, in the same order
+     */
+    public int[] guess(List<Image> images){
+        int[] guesses = new int[images.size()];
+        if(images.isEmpty()){
+            return guesses;
+        }
+
+        Tensor outputs = forwardBatch(_layers, inputBatch(images, scalingFactor, getPrecision()));
+        for(int b=0; b<guesses.length; b++){
+            guesses[b] = getMaxIndex(outputs.slice(b).toArray());
+        }
+        return guesses;
+    }
+
+    /**
+     * Creates an immutable copy of this network that can only guess. It does not
+     * change when this network is trained later.
+     * @return compiled copy of this network
+     */
+    public CompiledNetwork compile(){
+        return new CompiledNetwork(_layers, scalingFactor);
+    }
+
+    /**
+     * Creates a copy of this network with all the weights converted to the given precision.
+     * Used for running networks that were trained and saved with doubles in float precision.
+     * @param precision precision of the new network
+     * @return new network with converted copies of the layers
+     */
+    public NeuralNetwork convert(Precision precision){
+        List<Layer> layers = new ArrayList<>();
+        for(var layer: _layers){
+            layers.add(layer.copy(precision));
+        }
+
+        NeuralNetwork converted = new NeuralNetwork(layers, scalingFactor);
+        converted.batchSize = batchSize;
+        return converted;
+    }
+
+    public Precision getPrecision(){
+        return _layers.getFirst().getPrecision();
+    }
+
+    /**
+     * Creates the input for the first layer from the given image, every pixel scaled by the scaling factor.
+     * @param image image to create the input from
+     * @param scalingFactor number every pixel is divided by
+     * @param precision precision of the first layer
+     * @return Tensor of shape [1, rows, cols] with the scaled pixels. The first dimension is 1 because
+     * the first layer gets a list of matrices, even tho there is only one picture.
+     */
+    static Tensor inputTensor(Image image, double scalingFactor, Precision precision){
+        Tensor input = new Tensor(precision, 1, image.getRows(), image.getCols());
+        fillInput(image, scalingFactor, input);
+
+        return input;
+    }
+
+    /**
+     * Same as inputTensor, but writes the scaled pixels into the given Tensor.
+     * @param input Tensor of shape [1, image rows, image cols]
+     */
+    static void fillInput(Image image, double scalingFactor, Tensor input){
+        image.writeInput(input, 1.0/scalingFactor);     //bytes of the image are scaled (and normalized) right here
+    }
+
+    /**
+     * Creates the input for the first layer from many images at once.
+     * @param images images of the same size, at least one
+     * @return Tensor of shape [number of images, rows, cols] with the scaled pixels of every image
+     */
+    static Tensor inputBatch(List<Image> images, double scalingFactor, Precision precision){
+        int rows = images.getFirst().getRows();
+        int cols = images.getFirst().getCols();
+
+        Tensor inputs = new Tensor(precision, images.size(), 1, rows, cols);
+        for(int b=0; b<images.size(); b++){
+            fillInput(images.get(b), scalingFactor, inputs.slice(b));
+        }
+
+        return inputs.reshape(images.size(), rows, cols);
+    }
+
+    /**
+     * Passes the input through every layer using Layer.forward, which does not change the layers.
+     * @param layers layers to pass the input through, in order
+     * @param input input of the first layer
+     * @return output of the last layer
+     */
+    static Tensor forward(List<Layer> layers, Tensor input){
+        Tensor output = input;
+        for(var layer: layers){
+            output = layer.forward(output);
+        }
+        return output;
+    }
+
+    /**
+     * Passes a batch of inputs through every layer using Layer.forwardBatch, which does not change the layers.
+     * @param layers layers to pass the inputs through, in order
+     * @param inputs inputs of the first layer, the first dimension is the batch
+     * @return outputs of the last layer, shaped [batch size, outputs of the last layer]
+     */
+    static Tensor forwardBatch(List<Layer> layers, Tensor inputs){
+        Tensor outputs = inputs;
+        for(var layer: layers){
+            outputs = layer.forwardBatch(outputs);
+        }
+        return outputs;
+    }
+
     public double testAccuracy(List<Image> images){
         int correct = 0;
 
@@ -95,17 +259,83 @@ public class NeuralNetwork implements Serializable {
         return((double)correct/ images.size());
     }
 
-    public void train(List<Image> images){
+    /**
+     * Trains the network on the given images in mini-batches of getBatchSize() images.
+     * Gradients of every image in a batch are summed in the layers, and the weights are
+     * updated once at the end of the batch. The last batch can be smaller than the others.
+     * @param images images to train on, in the order they should be used, they can also
+     *               come from a stream that is still being read (DataReaderMNIST.streamData)
+     */
+    public void train(Iterable<Image> images){
+        int batchSize = getBatchSize();
+        int inBatch = 0;
 
         for(var image: images){
-            List<double[][]> inputList = new ArrayList<>();
-            inputList.add(multiply(image.getData(), 1.0/scalingFactor));
+            accumulateGradients(image);
+            inBatch++;
 
-            double[] networkOutput = _layers.getFirst().getOutput(inputList);
-            double[] dLdO = getErrors(networkOutput, image.getLabel());
+            if(inBatch == batchSize){
+                applyGradients(inBatch);
+                inBatch = 0;
+            }
+        }
 
-            _layers.getLast().backPropagation(dLdO);
+        if(inBatch > 0){
+            applyGradients(inBatch);
+        }
+    }
+
+    /**
+     * Runs the forward pass and backpropagation for one image. Layers only add
+     * the gradients of this image to their sums, the weights are not changed.
+     * @param image labeled image to learn from
+     */
+    void accumulateGradients(Image image){
+        if(_input == null || _input.dim(1) != image.getRows() || _input.dim(2) != image.getCols()){
+            _input = new Tensor(getPrecision(), 1, image.getRows(), image.getCols());
+        }
+        fillInput(image, scalingFactor, _input);
+
+        Tensor networkOutput = _layers.getFirst().getOutput(_input);
+        getErrors(networkOutput, image.getLabel(), _errors);
+
+        _layers.getLast().backPropagation(_errors);
+    }
+
+    /**
+     * Updates the weights of every layer with the gradients accumulated so far.
+     * @param batchSize number of images the gradients were accumulated for
+     */
+    void applyGradients(int batchSize){
+        for(var layer: _layers){
+            layer.applyGradients(batchSize);
+        }
+    }
 
+    /**
+     * Creates a network made of replicas of this network's layers. The replica shares
+     * the weights with this network, but keeps its own forward pass state and gradients,
+     * so it can be trained on another thread at the same time as this network.
+     * @return network of layer replicas
+     */
+    NeuralNetwork replicate(){
+        List<Layer> replicas = new ArrayList<>();
+        for(var layer: _layers){
+            replicas.add(layer.replicate());
+        }
+
+        NeuralNetwork replica = new NeuralNetwork(replicas, scalingFactor);
+        replica.batchSize = batchSize;
+        return replica;
+    }
+
+    /**
+     * Moves the gradients accumulated in the given replica into the layers of this network.
+     * @param replica network created by calling replicate() on this network
+     */
+    void mergeGradients(NeuralNetwork replica){
+        for(int i=0; i<_layers.size(); i++){
+            _layers.get(i).mergeGradients(replica._layers.get(i));
         }
     }
 
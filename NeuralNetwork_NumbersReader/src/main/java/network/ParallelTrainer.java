@@ -0,0 +1,93 @@
+package network;
+
+import data.Image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Trains a NeuralNetwork on more than one thread. Every batch of images is split
+ * between the threads, and every thread trains its own replica of the network on its part.
+ * Replicas share the weights with the network, so after all the threads are done, their
+ * gradients are merged into the network and the weights are updated once for the whole batch.
+ * The result is the same as calling NeuralNetwork.train with the same batch size, up to
+ * the order in which the gradients are summed.
+ * Batch size of the network should be a few times larger than the number of threads,
+ * otherwise the threads have too little work between the weight updates.
+ */
+public class ParallelTrainer implements AutoCloseable {
+
+    private final NeuralNetwork _network;
+    private final List<NeuralNetwork> _replicas;
+    private final ForkJoinPool _pool;
+
+    public ParallelTrainer(NeuralNetwork network, int threads) {
+        if(threads < 1){
+            throw new IllegalArgumentException("Number of threads must be at least 1, was " + threads);
+        }
+
+        this._network = network;
+        this._pool = new ForkJoinPool(threads);
+
+        _replicas = new ArrayList<>();
+        for(int i=0; i<threads; i++){
+            _replicas.add(network.replicate());
+        }
+    }
+
+    /**
+     * Trains the network on the given images in batches of network.getBatchSize() images.
+     * @param images images to train on, in the order they should be used, they can also
+     *               come from a stream that is still being read (DataReaderMNIST.streamData)
+     */
+    public void train(Iterable<Image> images){
+        int batchSize = _network.getBatchSize();
+        List<Image> batch = new ArrayList<>(batchSize);
+
+        for(var image: images){
+            batch.add(image);
+            if(batch.size() == batchSize){
+                trainBatch(batch);
+                batch.clear();
+            }
+        }
+        if(!batch.isEmpty()){
+            trainBatch(batch);
+        }
+    }
+
+    private void trainBatch(List<Image> batch){
+        int workers = Math.min(_replicas.size(), batch.size());
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        for(int w=0; w<workers; w++){
+            //every worker gets an equal continuous part of the batch
+            List<Image> part = batch.subList(batch.size()*w/workers, batch.size()*(w+1)/workers);
+            NeuralNetwork replica = _replicas.get(w);
+
+            tasks.add(_pool.submit(() -> {
+                for(var image: part){
+                    replica.accumulateGradients(image);
+                }
+            }));
+        }
+
+        for(var task: tasks){
+            task.join();
+        }
+
+        /*Weights are only read while the workers run, so they can be changed now
+        * when all the workers are done.*/
+        for(int w=0; w<workers; w++){
+            _network.mergeGradients(_replicas.get(w));
+        }
+        _network.applyGradients(batch.size());
+    }
+
+    @Override
+    public void close() {
+        _pool.shutdown();
+    }
+}